@@ -17,6 +17,185 @@ const WSTun = {
     /** Generate unique ID */
     generateId: function() { return Date.now().toString(36) + Math.random().toString(36).substr(2, 6); },
     
+    /**
+     * Binary relay frames: [opcode:1][flags:1][idLen:1][requestId][raw bytes]
+     * Used for relayed HTTP bodies so they travel without base64.
+     */
+    relay: {
+        OP_REQUEST_BODY: 0x01,   // server -> service: body of http_request with binary: true
+        OP_RESPONSE_BODY: 0x02,  // service -> server: body of http_response with binary: true
+        OP_RESPONSE_CHUNK: 0x03, // service -> server: streamed chunk after http_response_start
+        OP_REQUEST_CHUNK: 0x04,  // server -> service: streamed body chunk after http_request with streaming: true
+        FLAG_FIN: 0x01,
+        
+        encode: function(opcode, flags, requestId, data) {
+            const id = String(requestId);
+            const body = !data ? new Uint8Array(0) :
+                data instanceof ArrayBuffer ? new Uint8Array(data) :
+                new Uint8Array(data.buffer, data.byteOffset, data.byteLength);
+            const out = new Uint8Array(3 + id.length + body.length);
+            out[0] = opcode;
+            out[1] = flags;
+            out[2] = id.length;
+            for (let i = 0; i < id.length; i++) out[3 + i] = id.charCodeAt(i) & 0x7f;
+            out.set(body, 3 + id.length);
+            return out.buffer;
+        },
+        
+        decode: function(buffer) {
+            const bytes = new Uint8Array(buffer);
+            if (bytes.length < 3 || bytes.length < 3 + bytes[2]) return null;
+            const idLen = bytes[2];
+            let id = '';
+            for (let i = 0; i < idLen; i++) id += String.fromCharCode(bytes[3 + i]);
+            return {
+                opcode: bytes[0], flags: bytes[1], requestId: id,
+                fin: (bytes[1] & 0x01) !== 0, data: bytes.subarray(3 + idLen)
+            };
+        }
+    },
+    
+    /**
+     * Content hash of a Blob/File as "sha256:<hex>", read in 1 MB slices.
+     * Plain JS because crypto.subtle is unavailable on pages served over http.
+     * Lets the server treat identical files shared by different users as one
+     * download with several sources.
+     */
+    hashBlob: function(blob) {
+        const SLICE = 1024 * 1024;
+        const K = new Uint32Array([
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        ]);
+        const H = new Uint32Array([
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+        ]);
+        const W = new Uint32Array(64);
+        const rotr = (x, n) => (x >>> n) | (x << (32 - n));
+        
+        // Compress every whole 64-byte block of bytes[0..end)
+        const blocks = (bytes, end) => {
+            const view = new DataView(bytes.buffer, bytes.byteOffset, end);
+            for (let p = 0; p + 64 <= end; p += 64) {
+                for (let i = 0; i < 16; i++) W[i] = view.getUint32(p + i * 4);
+                for (let i = 16; i < 64; i++) {
+                    const s0 = rotr(W[i - 15], 7) ^ rotr(W[i - 15], 18) ^ (W[i - 15] >>> 3);
+                    const s1 = rotr(W[i - 2], 17) ^ rotr(W[i - 2], 19) ^ (W[i - 2] >>> 10);
+                    W[i] = W[i - 16] + s0 + W[i - 7] + s1;
+                }
+                let a = H[0], b = H[1], c = H[2], d = H[3], e = H[4], f = H[5], g = H[6], h = H[7];
+                for (let i = 0; i < 64; i++) {
+                    const t1 = (h + (rotr(e, 6) ^ rotr(e, 11) ^ rotr(e, 25)) + ((e & f) ^ (~e & g)) + K[i] + W[i]) | 0;
+                    const t2 = ((rotr(a, 2) ^ rotr(a, 13) ^ rotr(a, 22)) + ((a & b) ^ (a & c) ^ (b & c))) | 0;
+                    h = g; g = f; f = e; e = (d + t1) | 0;
+                    d = c; c = b; b = a; a = (t1 + t2) | 0;
+                }
+                H[0] += a; H[1] += b; H[2] += c; H[3] += d; H[4] += e; H[5] += f; H[6] += g; H[7] += h;
+            }
+        };
+        
+        const total = blob.size;
+        const finish = (tail) => {
+            // Padding: 0x80, zeros, then the bit length as a 64-bit big-endian integer
+            const padded = new Uint8Array(tail.length + 9 <= 64 ? 64 : 128);
+            padded.set(tail);
+            padded[tail.length] = 0x80;
+            const view = new DataView(padded.buffer);
+            view.setUint32(padded.length - 8, Math.floor(total / 0x20000000));
+            view.setUint32(padded.length - 4, (total * 8) >>> 0);
+            blocks(padded, padded.length);
+            let hex = '';
+            for (let i = 0; i < 8; i++) hex += ('00000000' + H[i].toString(16)).slice(-8);
+            return 'sha256:' + hex;
+        };
+        
+        // SLICE is a multiple of 64, so only the last slice leaves a partial block
+        const step = (offset) => {
+            if (offset >= total) return Promise.resolve(finish(new Uint8Array(0)));
+            return blob.slice(offset, offset + SLICE).arrayBuffer().then(buffer => {
+                const bytes = new Uint8Array(buffer);
+                const whole = bytes.length - bytes.length % 64;
+                blocks(bytes, whole);
+                if (offset + bytes.length >= total) return finish(bytes.subarray(whole));
+                return step(offset + bytes.length);
+            });
+        };
+        return step(0);
+    },
+    
+    /**
+     * Upload a Blob/File to the server's blob store (/_api/blobs), so it can be
+     * downloaded without the uploader staying online. Sent in chunks; after a
+     * network error the upload asks the server for its offset and resumes there.
+     * options: { serverToken, onProgress(sent, total), chunkSize, retries, resumeId }
+     * Resolves to { id, url }. Pass a previous id as resumeId to continue it.
+     */
+    uploadBlob: function(blob, options) {
+        options = options || {};
+        const chunkSize = options.chunkSize || 8 * 1024 * 1024;
+        const retries = options.retries != null ? options.retries : 5;
+        const headers = (extra) => {
+            const h = Object.assign({ 'Tus-Resumable': '1.0.0' }, extra);
+            if (options.serverToken) h['Authorization'] = 'Bearer ' + options.serverToken;
+            return h;
+        };
+        const b64 = (s) => btoa(unescape(encodeURIComponent(s)));
+        
+        const create = () => fetch('/_api/blobs', {
+            method: 'POST',
+            headers: headers({
+                'Upload-Length': String(blob.size),
+                'Upload-Metadata': 'filename ' + b64(blob.name || 'blob') +
+                    ',filetype ' + b64(blob.type || 'application/octet-stream')
+            })
+        }).then(r => {
+            if (r.status !== 201) throw new Error('Upload rejected: ' + r.status);
+            return r.headers.get('Location').split('/').pop();
+        });
+        const offsetOf = (id) => fetch('/_api/blobs/' + id, { method: 'HEAD', headers: headers({}) })
+            .then(r => {
+                if (!r.ok) throw new Error('Upload lost: ' + r.status);
+                return parseInt(r.headers.get('Upload-Offset'), 10);
+            });
+        
+        const send = (id, offset, attempt) => {
+            if (options.onProgress) options.onProgress(offset, blob.size);
+            if (offset >= blob.size) {
+                let url = '/_api/blobs/' + id;
+                if (options.serverToken) url += '?token=' + encodeURIComponent(options.serverToken);
+                return Promise.resolve({ id: id, url: url });
+            }
+            return fetch('/_api/blobs/' + id, {
+                method: 'PATCH',
+                headers: headers({
+                    'Content-Type': 'application/offset+octet-stream',
+                    'Upload-Offset': String(offset)
+                }),
+                body: blob.slice(offset, offset + chunkSize)
+            }).then(r => {
+                if (r.status !== 204) throw new Error('Upload failed: ' + r.status);
+                return send(id, parseInt(r.headers.get('Upload-Offset'), 10), 0);
+            }).catch(e => {
+                if (attempt >= retries) throw e;
+                // Back off, then continue from wherever the server got to
+                return new Promise(res => setTimeout(res, 1000 * Math.pow(2, attempt)))
+                    .then(() => offsetOf(id))
+                    .then(next => send(id, next, attempt + 1));
+            });
+        };
+        
+        const start = options.resumeId
+            ? offsetOf(options.resumeId).then(offset => ({ id: options.resumeId, offset: offset }))
+            : create().then(id => ({ id: id, offset: 0 }));
+        return start.then(s => send(s.id, s.offset, 0));
+    },
+    
     /** Build WebSocket URL */
     buildWsUrl: function(serverToken) {
         const protocol = location.protocol === 'https:' ? 'wss:' : 'ws:';
@@ -37,22 +216,130 @@ class BaseClient {
         this.onError = options.onError || (() => {});
         this.ws = null;
         this.connected = false;
+        this._pendingBodies = new Map();  // requestId -> http_request waiting for its binary body
+        this._credits = new Map();        // requestId -> { credit, waiting } for streamed responses
+        this._cancelled = new Set();      // requestIds whose HTTP client has gone away
     }
     
     connect() {
         try { this.ws = new WebSocket(WSTun.buildWsUrl(this.serverToken)); }
         catch (err) { this.onError(err); return; }
+        this.ws.binaryType = 'arraybuffer';
         this.ws.onopen = () => { this.connected = true; this.onOpen(); this._onConnected(); };
-        this.ws.onmessage = (e) => { try { this._handleMessage(JSON.parse(e.data)); } catch(err) { console.error(err); } };
+        this.ws.onmessage = (e) => {
+            try {
+                if (typeof e.data === 'string') this._dispatch(JSON.parse(e.data));
+                else this._handleBinary(e.data);
+            } catch(err) { console.error(err); }
+        };
         this.ws.onclose = () => { this.connected = false; this.onClose(); };
         this.ws.onerror = (err) => { this.onError(err); };
     }
     
     disconnect() { if (this.ws) { this.ws.close(); this.ws = null; } }
     
-    send(type, payload) {
+    send(type, payload, binary) {
+        if (this.ws && this.ws.readyState === WebSocket.OPEN) {
+            const msg = { type, service: this.service, payload };
+            if (binary) msg.binary = true;
+            this.ws.send(JSON.stringify(msg));
+        }
+    }
+    
+    /** Send a raw binary relay frame */
+    sendFrame(opcode, flags, requestId, data) {
         if (this.ws && this.ws.readyState === WebSocket.OPEN) {
-            this.ws.send(JSON.stringify({ type, service: this.service, payload }));
+            this.ws.send(WSTun.relay.encode(opcode, flags, requestId, data));
+        }
+    }
+    
+    /** Answer a relayed http_request; body may be a string or binary (ArrayBuffer / typed array) */
+    sendResponse(requestId, status, headers, body) {
+        if (this._cancelled.delete(String(requestId))) return;
+        if (body instanceof ArrayBuffer || ArrayBuffer.isView(body)) {
+            this.send('http_response', { request_id: requestId, status, headers }, true);
+            this.sendFrame(WSTun.relay.OP_RESPONSE_BODY, WSTun.relay.FLAG_FIN, requestId, body);
+        } else {
+            this.send('http_response', { request_id: requestId, status, headers, body });
+        }
+    }
+    
+    /** Start a streamed response; follow with sendResponseChunk() */
+    sendResponseStart(requestId, status, headers) {
+        if (this._cancelled.has(String(requestId))) return;
+        this._credits.set(String(requestId), { credit: 0, waiting: null });
+        this.send('http_response_start', { request_id: requestId, status, headers });
+    }
+    
+    /** Send a binary chunk of a streamed response; done ends the response */
+    sendResponseChunk(requestId, data, done) {
+        if (this._cancelled.has(String(requestId))) {
+            if (done) this._cancelled.delete(String(requestId));
+            return;
+        }
+        const state = this._credits.get(String(requestId));
+        if (state && data) state.credit--;
+        if (done) this._credits.delete(String(requestId));
+        this.sendFrame(WSTun.relay.OP_RESPONSE_CHUNK, done ? WSTun.relay.FLAG_FIN : 0, requestId, data);
+    }
+    
+    /** Run fn once the server has granted credit for another chunk of a streamed response */
+    whenCredit(requestId, fn) {
+        // A cancelled response never gets credit, so its producer simply stops
+        if (this._cancelled.has(String(requestId))) return;
+        const state = this._credits.get(String(requestId));
+        if (!state || state.credit > 0) { fn(); return; }
+        state.waiting = fn;
+    }
+    
+    /** True once the server reported that nobody is waiting for this response */
+    isCancelled(requestId) { return this._cancelled.has(String(requestId)); }
+    
+    /** Drop this service's responses from the server cache; paths are service-relative, all if omitted */
+    purgeCache(paths) { this.send('cache_purge', paths ? { paths } : {}); }
+    
+    _dispatch(msg) {
+        // Binary http_request bodies arrive in the next frame
+        if (msg.type === 'http_request' && msg.binary && msg.payload) {
+            this._pendingBodies.set(String(msg.payload.request_id), msg);
+            return;
+        }
+        // Flow control for streamed responses is handled here, not by the service
+        if (msg.type === 'http_credit' && msg.payload) {
+            const state = this._credits.get(String(msg.payload.request_id));
+            if (!state) return;
+            state.credit += msg.payload.credit || 0;
+            const waiting = state.waiting;
+            if (waiting && state.credit > 0) { state.waiting = null; waiting(); }
+            return;
+        }
+        // The HTTP client went away: stop producing, then let the service know too
+        if (msg.type === 'http_cancel' && msg.payload) {
+            const id = String(msg.payload.request_id);
+            this._credits.delete(id);
+            this._pendingBodies.delete(id);
+            this._cancelled.add(id);
+            // Producers that stop at whenCredit() never send done; keep the set bounded
+            if (this._cancelled.size > 1000) this._cancelled.delete(this._cancelled.values().next().value);
+        }
+        this._handleMessage(msg);
+    }
+    
+    _handleBinary(buffer) {
+        const frame = WSTun.relay.decode(buffer);
+        if (!frame) return;
+        if (frame.opcode === WSTun.relay.OP_REQUEST_BODY) {
+            const msg = this._pendingBodies.get(frame.requestId);
+            if (!msg) return;
+            this._pendingBodies.delete(frame.requestId);
+            msg.payload.body_bytes = frame.data;
+            this._handleMessage(msg);
+        } else if (frame.opcode === WSTun.relay.OP_REQUEST_CHUNK) {
+            // Same shape as a JSON http_request_chunk, with raw bytes instead of base64
+            this._handleMessage({
+                type: 'http_request_chunk', service: this.service,
+                payload: { request_id: frame.requestId, chunk_bytes: frame.data, done: frame.fin }
+            });
         }
     }
     
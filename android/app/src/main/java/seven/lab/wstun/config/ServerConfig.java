@@ -18,6 +18,18 @@ public class ServerConfig {
     private static final String KEY_SERVER_AUTH_TOKEN = "server_auth_token";
     private static final String KEY_AUTH_ENABLED = "auth_enabled";
     private static final String KEY_DEBUG_LOGS_ENABLED = "debug_logs_enabled";
+    private static final String KEY_RELAY_CACHE_ENABLED = "relay_cache_enabled";
+    private static final String KEY_RELAY_CACHE_SIZE_MB = "relay_cache_size_mb";
+    private static final String KEY_RESPONSE_CACHE_SIZE_MB = "response_cache_size_mb";
+    private static final String KEY_HTTP2_ENABLED = "http2_enabled";
+    private static final String KEY_HTTP3_ENABLED = "http3_enabled";
+    private static final String KEY_COMPRESSION_ENABLED = "compression_enabled";
+    private static final String KEY_COMPRESSION_MIN_BYTES = "compression_min_bytes";
+    private static final String KEY_COMPRESSION_TYPES = "compression_types";
+
+    /** Content types compressed by default; media and archives are already compressed. */
+    public static final String DEFAULT_COMPRESSION_TYPES = "text/*, application/json, application/javascript, "
+        + "application/xml, application/wasm, image/svg+xml, +json, +xml";
 
     private final SharedPreferences prefs;
 
@@ -154,4 +166,120 @@ public class ServerConfig {
     public void setDebugLogsEnabled(boolean enabled) {
         prefs.edit().putBoolean(KEY_DEBUG_LOGS_ENABLED, enabled).apply();
     }
+    
+    /**
+     * Check if relayed file downloads are cached on the device.
+     */
+    public boolean isRelayCacheEnabled() {
+        return prefs.getBoolean(KEY_RELAY_CACHE_ENABLED, false);
+    }
+    
+    /**
+     * Enable or disable the relay download cache.
+     */
+    public void setRelayCacheEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_RELAY_CACHE_ENABLED, enabled).apply();
+    }
+    
+    /**
+     * Get the relay download cache size cap in megabytes. Default is 512.
+     */
+    public int getRelayCacheSizeMb() {
+        return prefs.getInt(KEY_RELAY_CACHE_SIZE_MB, 512);
+    }
+    
+    /**
+     * Set the relay download cache size cap in megabytes.
+     */
+    public void setRelayCacheSizeMb(int sizeMb) {
+        prefs.edit().putInt(KEY_RELAY_CACHE_SIZE_MB, sizeMb).apply();
+    }
+    
+    /**
+     * Get the in-memory cache size for relayed service responses in megabytes.
+     * Default is 16; 0 disables the cache.
+     */
+    public int getResponseCacheSizeMb() {
+        return prefs.getInt(KEY_RESPONSE_CACHE_SIZE_MB, 16);
+    }
+    
+    /**
+     * Set the in-memory service response cache size in megabytes.
+     */
+    public void setResponseCacheSizeMb(int sizeMb) {
+        prefs.edit().putInt(KEY_RESPONSE_CACHE_SIZE_MB, sizeMb).apply();
+    }
+    
+    /**
+     * Check if HTTP/2 is offered: through ALPN with HTTPS, or with prior knowledge
+     * (h2c) over plain HTTP. Default is true.
+     */
+    public boolean isHttp2Enabled() {
+        return prefs.getBoolean(KEY_HTTP2_ENABLED, true);
+    }
+    
+    /**
+     * Enable or disable HTTP/2.
+     */
+    public void setHttp2Enabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_HTTP2_ENABLED, enabled).apply();
+    }
+    
+    /**
+     * Check if the experimental HTTP/3 (QUIC) listener is started with HTTPS.
+     * It needs the native QUIC library for the device. Default is false.
+     */
+    public boolean isHttp3Enabled() {
+        return prefs.getBoolean(KEY_HTTP3_ENABLED, false);
+    }
+    
+    /**
+     * Enable or disable the HTTP/3 listener.
+     */
+    public void setHttp3Enabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_HTTP3_ENABLED, enabled).apply();
+    }
+    
+    /**
+     * Check if HTTP responses and WebSocket messages are compressed. Default is true.
+     */
+    public boolean isCompressionEnabled() {
+        return prefs.getBoolean(KEY_COMPRESSION_ENABLED, true);
+    }
+    
+    /**
+     * Enable or disable HTTP and WebSocket compression.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_COMPRESSION_ENABLED, enabled).apply();
+    }
+    
+    /**
+     * Get the size in bytes below which responses and messages are sent uncompressed.
+     * Default is 1024.
+     */
+    public int getCompressionMinBytes() {
+        return prefs.getInt(KEY_COMPRESSION_MIN_BYTES, 1024);
+    }
+    
+    /**
+     * Set the minimum size for compression in bytes.
+     */
+    public void setCompressionMinBytes(int minBytes) {
+        prefs.edit().putInt(KEY_COMPRESSION_MIN_BYTES, minBytes).apply();
+    }
+    
+    /**
+     * Get the comma-separated content types that HTTP responses are compressed for.
+     */
+    public String getCompressionTypes() {
+        return prefs.getString(KEY_COMPRESSION_TYPES, DEFAULT_COMPRESSION_TYPES);
+    }
+    
+    /**
+     * Set the content types that HTTP responses are compressed for.
+     */
+    public void setCompressionTypes(String types) {
+        prefs.edit().putString(KEY_COMPRESSION_TYPES, types).apply();
+    }
 }
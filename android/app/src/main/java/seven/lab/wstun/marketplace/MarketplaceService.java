@@ -59,6 +59,15 @@ public class MarketplaceService {
         void onError(String error);
     }
     
+    /**
+     * Notified after a service is installed, updated, enabled, disabled or uninstalled.
+     */
+    public interface ChangeListener {
+        void onServiceChanged(String serviceName);
+    }
+    
+    private volatile ChangeListener changeListener;
+    
     public MarketplaceService(Context context) {
         this.context = context;
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
@@ -351,6 +360,7 @@ public class MarketplaceService {
                 // Add to installed services
                 installedServices.put(manifest.getName(), service);
                 saveInstalledServices();
+                notifyChanged(manifest.getName());
                 
                 Log.i(TAG, "Installed service: " + manifest.getName());
                 callback.onSuccess(service);
@@ -393,6 +403,7 @@ public class MarketplaceService {
         // Remove from cache
         installedServices.remove(serviceName);
         saveInstalledServices();
+        notifyChanged(serviceName);
         
         Log.i(TAG, "Uninstalled service: " + serviceName);
         return true;
@@ -423,6 +434,7 @@ public class MarketplaceService {
         
         service.setEnabled(true);
         saveInstalledServices();
+        notifyChanged(serviceName);
         Log.i(TAG, "Enabled service: " + serviceName);
         return true;
     }
@@ -439,10 +451,22 @@ public class MarketplaceService {
         service.setEnabled(false);
         service.setRunning(false);
         saveInstalledServices();
+        notifyChanged(serviceName);
         Log.i(TAG, "Disabled service: " + serviceName);
         return true;
     }
     
+    public void setChangeListener(ChangeListener listener) {
+        this.changeListener = listener;
+    }
+    
+    private void notifyChanged(String serviceName) {
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.onServiceChanged(serviceName);
+        }
+    }
+    
     /**
      * Get all installed services.
      */
@@ -30,6 +30,9 @@ public class HttpRelayRequest {
     @SerializedName("body_base64")
     private String bodyBase64;  // For binary data
 
+    @SerializedName("streaming")
+    private boolean streaming;  // Body follows as http_request_chunk messages
+
     public String getRequestId() {
         return requestId;
     }
@@ -85,4 +88,12 @@ public class HttpRelayRequest {
     public void setBodyBase64(String bodyBase64) {
         this.bodyBase64 = bodyBase64;
     }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
 }
@@ -0,0 +1,53 @@
+package seven.lab.wstun.protocol;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * A chunk of a streamed HTTP response from a service client (http_response_chunk).
+ */
+public class HttpResponseChunk {
+
+    @SerializedName("request_id")
+    private String requestId;
+
+    @SerializedName("chunk_base64")
+    private String chunkBase64;
+
+    @SerializedName("done")
+    private boolean done;  // Last chunk of the response
+
+    @SerializedName("error")
+    private String error;  // Ends the response with an error
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getChunkBase64() {
+        return chunkBase64;
+    }
+
+    public void setChunkBase64(String chunkBase64) {
+        this.chunkBase64 = chunkBase64;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
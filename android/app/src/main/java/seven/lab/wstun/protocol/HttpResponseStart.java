@@ -0,0 +1,43 @@
+package seven.lab.wstun.protocol;
+
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Start of a streamed HTTP response from a service client (http_response_start).
+ */
+public class HttpResponseStart {
+
+    @SerializedName("request_id")
+    private String requestId;
+
+    @SerializedName("status")
+    private int status;
+
+    @SerializedName("headers")
+    private JsonObject headers;
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public JsonObject getHeaders() {
+        return headers;
+    }
+
+    public void setHeaders(JsonObject headers) {
+        this.headers = headers;
+    }
+}
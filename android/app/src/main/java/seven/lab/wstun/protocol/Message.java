@@ -1,16 +1,29 @@
 package seven.lab.wstun.protocol;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
 
 /**
  * Base message class for WebSocket communication.
  * Supports both text (JSON) and binary modes.
+ *
+ * Messages read with decode keep their payload as the raw bytes of the frame
+ * until something asks for it: getPayload parses it into a tree, readPayload
+ * binds it to a protocol class, and toJson copies it through unparsed.
+ * Until anything is changed, getSource gives the frame itself, so a message
+ * can be forwarded without being encoded again.
  */
 public class Message {
     
-    private static final Gson gson = new Gson();
+    private static final Gson gson = ProtocolAdapters.register(new GsonBuilder()).create();
 
     // Message types
     public static final String TYPE_REGISTER = "register";
@@ -29,9 +42,17 @@ public class Message {
     public static final String TYPE_HTTP_REQUEST = "http_request";
     public static final String TYPE_HTTP_RESPONSE = "http_response";
     
+    // Streaming request body for large uploads
+    public static final String TYPE_HTTP_REQUEST_CHUNK = "http_request_chunk";
+    
     // Streaming response types for large file transfers
     public static final String TYPE_HTTP_RESPONSE_START = "http_response_start";
     public static final String TYPE_HTTP_RESPONSE_CHUNK = "http_response_chunk";
+    public static final String TYPE_HTTP_CREDIT = "http_credit";
+    public static final String TYPE_HTTP_CANCEL = "http_cancel";
+    
+    // Drop a service's cached responses
+    public static final String TYPE_CACHE_PURGE = "cache_purge";
     
     // File registry types for relay file sharing
     public static final String TYPE_FILE_REGISTER = "file_register";
@@ -80,6 +101,11 @@ public class Message {
     @SerializedName("binary")
     private boolean binary;
 
+    // Unparsed payload JSON, a slice of the frame being handled (not retained)
+    private transient ByteBuf rawPayload;
+    // The whole frame, while the message is unchanged (not retained)
+    private transient ByteBuf source;
+
     public Message() {
     }
 
@@ -103,6 +129,7 @@ public class Message {
 
     public void setType(String type) {
         this.type = type;
+        this.source = null;
     }
 
     public String getId() {
@@ -111,6 +138,7 @@ public class Message {
 
     public void setId(String id) {
         this.id = id;
+        this.source = null;
     }
 
     public String getService() {
@@ -119,14 +147,66 @@ public class Message {
 
     public void setService(String service) {
         this.service = service;
+        this.source = null;
     }
 
     public JsonObject getPayload() {
+        if (payload == null && rawPayload != null) {
+            try (JsonReader reader = MessageDecoder.reader(rawPayload)) {
+                payload = JsonParser.parseReader(reader).getAsJsonObject();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Malformed payload", e);
+            }
+            // The tree may now be changed, so it is what gets written
+            rawPayload = null;
+            source = null;
+        }
         return payload;
     }
 
     public void setPayload(JsonObject payload) {
         this.payload = payload;
+        this.rawPayload = null;
+        this.source = null;
+    }
+
+    /**
+     * Bind the payload to a protocol class, straight from the raw bytes when
+     * it has not been parsed. Returns null if there is no payload. The result
+     * is a copy (JsonObject.class gives a detached tree), so the message
+     * stays unchanged.
+     */
+    public <T> T readPayload(Class<T> clazz) {
+        if (rawPayload == null) {
+            return payload != null ? gson.fromJson(payload, clazz) : null;
+        }
+        try (JsonReader reader = MessageDecoder.reader(rawPayload)) {
+            return gson.getAdapter(clazz).read(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed payload", e);
+        }
+    }
+
+    ByteBuf getRawPayload() {
+        return rawPayload;
+    }
+
+    void setRawPayload(ByteBuf rawPayload) {
+        this.rawPayload = rawPayload;
+        this.payload = null;
+    }
+
+    /**
+     * The frame content this message was decoded from (not retained), or null
+     * if it was built here or has been changed since. Valid only while the
+     * frame is being handled.
+     */
+    public ByteBuf getSource() {
+        return source;
+    }
+
+    void setSource(ByteBuf source) {
+        this.source = source;
     }
 
     public boolean isBinary() {
@@ -135,6 +215,7 @@ public class Message {
 
     public void setBinary(boolean binary) {
         this.binary = binary;
+        this.source = null;
     }
 
     public String toJson() {
@@ -145,6 +226,15 @@ public class Message {
         return gson.fromJson(json, Message.class);
     }
 
+    /**
+     * Read a message from the UTF-8 content of a text frame. The payload stays
+     * a slice of content, so the message must not be used after content is
+     * released unless getPayload was called first.
+     */
+    public static Message decode(ByteBuf content) {
+        return MessageDecoder.decode(content);
+    }
+
     public static <T> T payloadAs(JsonObject payload, Class<T> clazz) {
         return gson.fromJson(payload, clazz);
     }
@@ -0,0 +1,190 @@
+package seven.lab.wstun.protocol;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+/**
+ * Reads a Message envelope straight from the UTF-8 bytes of a text frame.
+ *
+ * Only type, id, service and binary are decoded. The payload is not parsed:
+ * its byte range is kept as a slice so a handler can bind it with a type
+ * adapter, read it as a tree, or forward it unchanged. The scan is
+ * structural (strings, nesting, commas) and leaves full validation of the
+ * payload to whoever reads it.
+ */
+final class MessageDecoder {
+
+    private MessageDecoder() {
+    }
+
+    /**
+     * Read the envelope. The payload and the message's source are unretained
+     * slices of buf.
+     */
+    static Message decode(ByteBuf buf) {
+        Message message = new Message();
+        int end = buf.writerIndex();
+        int i = skipWhitespace(buf, buf.readerIndex(), end);
+        i = expect(buf, i, end, '{');
+        i = skipWhitespace(buf, i, end);
+        if (i < end && buf.getByte(i) == '}') {
+            message.setSource(buf.slice());
+            return message;
+        }
+        while (true) {
+            i = expect(buf, i, end, '"');
+            int keyEnd = skipString(buf, i, end);
+            String key = readString(buf, i - 1, keyEnd);
+            i = skipWhitespace(buf, keyEnd, end);
+            i = expect(buf, i, end, ':');
+            int valueStart = skipWhitespace(buf, i, end);
+            int valueEnd = skipValue(buf, valueStart, end);
+
+            switch (key) {
+                case "type":
+                    message.setType(readStringValue(buf, valueStart, valueEnd));
+                    break;
+                case "id":
+                    message.setId(readStringValue(buf, valueStart, valueEnd));
+                    break;
+                case "service":
+                    message.setService(readStringValue(buf, valueStart, valueEnd));
+                    break;
+                case "binary":
+                    message.setBinary(valueEnd - valueStart == 4 && buf.getByte(valueStart) == 't');
+                    break;
+                case "payload":
+                    if (buf.getByte(valueStart) == '{') {
+                        message.setRawPayload(buf.slice(valueStart, valueEnd - valueStart));
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            i = skipWhitespace(buf, valueEnd, end);
+            if (i >= end) {
+                throw malformed(i);
+            }
+            byte b = buf.getByte(i++);
+            if (b == '}') {
+                message.setSource(buf.slice());
+                return message;
+            }
+            if (b != ',') {
+                throw malformed(i - 1);
+            }
+            i = skipWhitespace(buf, i, end);
+        }
+    }
+
+    /**
+     * A reader over bytes holding a JSON value.
+     */
+    static JsonReader reader(ByteBuf json) {
+        JsonReader reader = new JsonReader(
+            new InputStreamReader(new ByteBufInputStream(json.duplicate()), StandardCharsets.UTF_8));
+        // As lenient as Gson.fromJson
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static String readStringValue(ByteBuf buf, int start, int end) {
+        return buf.getByte(start) == '"' ? readString(buf, start, end) : null;
+    }
+
+    /**
+     * Decode the string literal between start (the opening quote) and end
+     * (just past the closing quote).
+     */
+    private static String readString(ByteBuf buf, int start, int end) {
+        if (buf.indexOf(start + 1, end - 1, (byte) '\\') < 0) {
+            return buf.toString(start + 1, end - start - 2, StandardCharsets.UTF_8);
+        }
+        try (JsonReader reader = reader(buf.slice(start, end - start))) {
+            return reader.nextString();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed string at " + start, e);
+        }
+    }
+
+    private static int skipWhitespace(ByteBuf buf, int i, int end) {
+        while (i < end) {
+            byte b = buf.getByte(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int expect(ByteBuf buf, int i, int end, char c) {
+        if (i >= end || buf.getByte(i) != c) {
+            throw malformed(i);
+        }
+        return i + 1;
+    }
+
+    /**
+     * Index just past the closing quote of a string whose opening quote is at i - 1.
+     */
+    private static int skipString(ByteBuf buf, int i, int end) {
+        while (i < end) {
+            byte b = buf.getByte(i++);
+            if (b == '"') {
+                return i;
+            }
+            if (b == '\\') {
+                i++;
+            }
+        }
+        throw malformed(end);
+    }
+
+    /**
+     * Index just past the value starting at i.
+     */
+    private static int skipValue(ByteBuf buf, int i, int end) {
+        if (i >= end) {
+            throw malformed(i);
+        }
+        byte first = buf.getByte(i);
+        if (first == '"') {
+            return skipString(buf, i + 1, end);
+        }
+        if (first != '{' && first != '[') {
+            // Number, true, false or null
+            while (i < end) {
+                byte b = buf.getByte(i);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    break;
+                }
+                i++;
+            }
+            return i;
+        }
+        int depth = 0;
+        while (i < end) {
+            byte b = buf.getByte(i++);
+            if (b == '"') {
+                i = skipString(buf, i, end);
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i;
+            }
+        }
+        throw malformed(end);
+    }
+
+    private static IllegalArgumentException malformed(int index) {
+        return new IllegalArgumentException("Malformed message at byte " + index);
+    }
+}
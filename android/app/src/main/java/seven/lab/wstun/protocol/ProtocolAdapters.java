@@ -0,0 +1,565 @@
+package seven.lab.wstun.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written Gson adapters for the protocol classes, so messages are read and
+ * written field by field instead of through reflection.
+ *
+ * Reading is as lenient as Gson's reflective binding: unknown fields are
+ * skipped, null leaves the default, and numbers or booleans sent as strings
+ * are converted. Writing omits null fields, as Gson does by default.
+ */
+public final class ProtocolAdapters {
+
+    private static final TypeAdapter<JsonElement> JSON_ELEMENT = new Gson().getAdapter(JsonElement.class);
+
+    private ProtocolAdapters() {
+    }
+
+    /**
+     * Register every adapter on a builder. The adapters below expect non-null
+     * values; registered, they are wrapped to handle JSON null.
+     */
+    public static GsonBuilder register(GsonBuilder builder) {
+        return builder
+            .registerTypeAdapter(Message.class, MESSAGE.nullSafe())
+            .registerTypeAdapter(HttpRelayRequest.class, HTTP_RELAY_REQUEST.nullSafe())
+            .registerTypeAdapter(HttpRelayResponse.class, HTTP_RELAY_RESPONSE.nullSafe())
+            .registerTypeAdapter(HttpResponseStart.class, HTTP_RESPONSE_START.nullSafe())
+            .registerTypeAdapter(HttpResponseChunk.class, HTTP_RESPONSE_CHUNK.nullSafe())
+            .registerTypeAdapter(ServiceRegistration.class, SERVICE_REGISTRATION.nullSafe())
+            .registerTypeAdapter(ServiceRegistration.Endpoint.class, ENDPOINT);
+    }
+
+    static final TypeAdapter<Message> MESSAGE = new TypeAdapter<Message>() {
+        @Override
+        public void write(JsonWriter out, Message value) throws IOException {
+            out.beginObject();
+            writeString(out, "type", value.getType());
+            writeString(out, "id", value.getId());
+            writeString(out, "service", value.getService());
+            if (value.getRawPayload() != null) {
+                // Received payload that nobody changed: copied through as it arrived
+                out.name("payload").jsonValue(value.getRawPayload().toString(StandardCharsets.UTF_8));
+            } else if (value.getPayload() != null) {
+                out.name("payload");
+                JSON_ELEMENT.write(out, value.getPayload());
+            }
+            out.name("binary").value(value.isBinary());
+            out.endObject();
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            Message message = new Message();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "type":
+                        message.setType(readString(in));
+                        break;
+                    case "id":
+                        message.setId(readString(in));
+                        break;
+                    case "service":
+                        message.setService(readString(in));
+                        break;
+                    case "payload":
+                        JsonElement payload = JSON_ELEMENT.read(in);
+                        if (payload != null && payload.isJsonObject()) {
+                            message.setPayload(payload.getAsJsonObject());
+                        }
+                        break;
+                    case "binary":
+                        message.setBinary(readBoolean(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+    };
+
+    static final TypeAdapter<HttpRelayRequest> HTTP_RELAY_REQUEST = new TypeAdapter<HttpRelayRequest>() {
+        @Override
+        public void write(JsonWriter out, HttpRelayRequest value) throws IOException {
+            out.beginObject();
+            writeString(out, "request_id", value.getRequestId());
+            writeString(out, "method", value.getMethod());
+            writeString(out, "path", value.getPath());
+            writeString(out, "query", value.getQuery());
+            writeStringMap(out, "headers", value.getHeaders());
+            writeString(out, "body", value.getBody());
+            writeString(out, "body_base64", value.getBodyBase64());
+            out.name("streaming").value(value.isStreaming());
+            out.endObject();
+        }
+
+        @Override
+        public HttpRelayRequest read(JsonReader in) throws IOException {
+            HttpRelayRequest request = new HttpRelayRequest();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request_id":
+                        request.setRequestId(readString(in));
+                        break;
+                    case "method":
+                        request.setMethod(readString(in));
+                        break;
+                    case "path":
+                        request.setPath(readString(in));
+                        break;
+                    case "query":
+                        request.setQuery(readString(in));
+                        break;
+                    case "headers":
+                        request.setHeaders(readStringMap(in));
+                        break;
+                    case "body":
+                        request.setBody(readString(in));
+                        break;
+                    case "body_base64":
+                        request.setBodyBase64(readString(in));
+                        break;
+                    case "streaming":
+                        request.setStreaming(readBoolean(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return request;
+        }
+    };
+
+    static final TypeAdapter<HttpRelayResponse> HTTP_RELAY_RESPONSE = new TypeAdapter<HttpRelayResponse>() {
+        @Override
+        public void write(JsonWriter out, HttpRelayResponse value) throws IOException {
+            out.beginObject();
+            writeString(out, "request_id", value.getRequestId());
+            out.name("status").value(value.getStatus());
+            writeStringMap(out, "headers", value.getHeaders());
+            writeString(out, "body", value.getBody());
+            writeString(out, "body_base64", value.getBodyBase64());
+            out.name("streaming").value(value.isStreaming());
+            out.name("chunk_index").value(value.getChunkIndex());
+            out.name("is_final").value(value.isFinal());
+            out.endObject();
+        }
+
+        @Override
+        public HttpRelayResponse read(JsonReader in) throws IOException {
+            HttpRelayResponse response = new HttpRelayResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request_id":
+                        response.setRequestId(readString(in));
+                        break;
+                    case "status":
+                        response.setStatus(readInt(in));
+                        break;
+                    case "headers":
+                        response.setHeaders(readStringMap(in));
+                        break;
+                    case "body":
+                        response.setBody(readString(in));
+                        break;
+                    case "body_base64":
+                        response.setBodyBase64(readString(in));
+                        break;
+                    case "streaming":
+                        response.setStreaming(readBoolean(in));
+                        break;
+                    case "chunk_index":
+                        response.setChunkIndex(readInt(in));
+                        break;
+                    case "is_final":
+                        response.setFinal(readBoolean(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    };
+
+    static final TypeAdapter<HttpResponseStart> HTTP_RESPONSE_START = new TypeAdapter<HttpResponseStart>() {
+        @Override
+        public void write(JsonWriter out, HttpResponseStart value) throws IOException {
+            out.beginObject();
+            writeString(out, "request_id", value.getRequestId());
+            out.name("status").value(value.getStatus());
+            if (value.getHeaders() != null) {
+                out.name("headers");
+                JSON_ELEMENT.write(out, value.getHeaders());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public HttpResponseStart read(JsonReader in) throws IOException {
+            HttpResponseStart start = new HttpResponseStart();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request_id":
+                        start.setRequestId(readString(in));
+                        break;
+                    case "status":
+                        start.setStatus(readInt(in));
+                        break;
+                    case "headers":
+                        JsonElement headers = JSON_ELEMENT.read(in);
+                        start.setHeaders(headers != null && headers.isJsonObject() ? headers.getAsJsonObject() : null);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return start;
+        }
+    };
+
+    static final TypeAdapter<HttpResponseChunk> HTTP_RESPONSE_CHUNK = new TypeAdapter<HttpResponseChunk>() {
+        @Override
+        public void write(JsonWriter out, HttpResponseChunk value) throws IOException {
+            out.beginObject();
+            writeString(out, "request_id", value.getRequestId());
+            writeString(out, "chunk_base64", value.getChunkBase64());
+            out.name("done").value(value.isDone());
+            writeString(out, "error", value.getError());
+            out.endObject();
+        }
+
+        @Override
+        public HttpResponseChunk read(JsonReader in) throws IOException {
+            HttpResponseChunk chunk = new HttpResponseChunk();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request_id":
+                        chunk.setRequestId(readString(in));
+                        break;
+                    case "chunk_base64":
+                        chunk.setChunkBase64(readString(in));
+                        break;
+                    case "done":
+                        chunk.setDone(readBoolean(in));
+                        break;
+                    case "error":
+                        chunk.setError(readString(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return chunk;
+        }
+    };
+
+    static final TypeAdapter<ServiceRegistration.Endpoint> ENDPOINT = new TypeAdapter<ServiceRegistration.Endpoint>() {
+        @Override
+        public void write(JsonWriter out, ServiceRegistration.Endpoint value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "path", value.getPath());
+            writeString(out, "method", value.getMethod());
+            writeString(out, "description", value.getDescription());
+            out.name("relay").value(value.isRelay());
+            out.endObject();
+        }
+
+        @Override
+        public ServiceRegistration.Endpoint read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            ServiceRegistration.Endpoint endpoint = new ServiceRegistration.Endpoint();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "path":
+                        endpoint.setPath(readString(in));
+                        break;
+                    case "method":
+                        endpoint.setMethod(readString(in));
+                        break;
+                    case "description":
+                        endpoint.setDescription(readString(in));
+                        break;
+                    case "relay":
+                        endpoint.setRelay(readBoolean(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return endpoint;
+        }
+    };
+
+    static final TypeAdapter<ServiceRegistration> SERVICE_REGISTRATION = new TypeAdapter<ServiceRegistration>() {
+        @Override
+        public void write(JsonWriter out, ServiceRegistration value) throws IOException {
+            out.beginObject();
+            writeString(out, "name", value.getName());
+            writeString(out, "type", value.getType());
+            writeString(out, "description", value.getDescription());
+            if (value.getEndpoints() != null) {
+                out.name("endpoints").beginArray();
+                for (ServiceRegistration.Endpoint endpoint : value.getEndpoints()) {
+                    ENDPOINT.write(out, endpoint);
+                }
+                out.endArray();
+            }
+            writeStringMap(out, "static_resources", value.getStaticResources());
+            writeString(out, "auth_token", value.getAuthToken());
+            out.name("binary_relay").value(value.isBinaryRelay());
+            out.name("stream_requests").value(value.isStreamRequests());
+            out.name("first_byte_timeout_ms").value(value.getFirstByteTimeoutMs());
+            out.name("idle_timeout_ms").value(value.getIdleTimeoutMs());
+            out.name("coalesce_gets").value(value.isCoalesceGets());
+            if (value.getCoalesceVary() != null) {
+                out.name("coalesce_vary").beginArray();
+                for (String header : value.getCoalesceVary()) {
+                    out.value(header);
+                }
+                out.endArray();
+            }
+            out.name("pool").value(value.isPool());
+            writeString(out, "sticky_cookie", value.getStickyCookie());
+            out.name("max_in_flight").value(value.getMaxInFlight());
+            out.name("max_queued").value(value.getMaxQueued());
+            out.name("max_queue_ms").value(value.getMaxQueueMs());
+            if (value.getPriorityRoutes() != null) {
+                out.name("priority_routes").beginObject();
+                for (Map.Entry<String, Integer> route : value.getPriorityRoutes().entrySet()) {
+                    out.name(route.getKey()).value(route.getValue());
+                }
+                out.endObject();
+            }
+            writeString(out, "priority_header", value.getPriorityHeader());
+            out.endObject();
+        }
+
+        @Override
+        public ServiceRegistration read(JsonReader in) throws IOException {
+            ServiceRegistration registration = new ServiceRegistration();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        registration.setName(readString(in));
+                        break;
+                    case "type":
+                        registration.setType(readString(in));
+                        break;
+                    case "description":
+                        registration.setDescription(readString(in));
+                        break;
+                    case "endpoints":
+                        registration.setEndpoints(readEndpoints(in));
+                        break;
+                    case "static_resources":
+                        registration.setStaticResources(readStringMap(in));
+                        break;
+                    case "auth_token":
+                        registration.setAuthToken(readString(in));
+                        break;
+                    case "binary_relay":
+                        registration.setBinaryRelay(readBoolean(in));
+                        break;
+                    case "stream_requests":
+                        registration.setStreamRequests(readBoolean(in));
+                        break;
+                    case "first_byte_timeout_ms":
+                        registration.setFirstByteTimeoutMs(readLong(in));
+                        break;
+                    case "idle_timeout_ms":
+                        registration.setIdleTimeoutMs(readLong(in));
+                        break;
+                    case "coalesce_gets":
+                        registration.setCoalesceGets(readBoolean(in));
+                        break;
+                    case "coalesce_vary":
+                        registration.setCoalesceVary(readStringList(in));
+                        break;
+                    case "pool":
+                        registration.setPool(readBoolean(in));
+                        break;
+                    case "sticky_cookie":
+                        registration.setStickyCookie(readString(in));
+                        break;
+                    case "max_in_flight":
+                        registration.setMaxInFlight(readInt(in));
+                        break;
+                    case "max_queued":
+                        registration.setMaxQueued(readInt(in));
+                        break;
+                    case "max_queue_ms":
+                        registration.setMaxQueueMs(readLong(in));
+                        break;
+                    case "priority_routes":
+                        registration.setPriorityRoutes(readIntMap(in));
+                        break;
+                    case "priority_header":
+                        registration.setPriorityHeader(readString(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return registration;
+        }
+    };
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static void writeStringMap(JsonWriter out, String name, Map<String, String> map) throws IOException {
+        if (map == null) {
+            return;
+        }
+        out.name(name).beginObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return null;
+            case BOOLEAN:
+                return Boolean.toString(in.nextBoolean());
+            default:
+                return in.nextString();
+        }
+    }
+
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return false;
+            case STRING:
+                return Boolean.parseBoolean(in.nextString());
+            default:
+                return in.nextBoolean();
+        }
+    }
+
+    private static int readInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    private static long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextLong();
+    }
+
+    private static Map<String, String> readStringMap(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Map<String, String> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            map.put(key, readString(in));
+        }
+        in.endObject();
+        return map;
+    }
+
+    private static Map<String, Integer> readIntMap(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Map<String, Integer> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                map.put(key, null);
+            } else {
+                map.put(key, in.nextInt());
+            }
+        }
+        in.endObject();
+        return map;
+    }
+
+    private static List<String> readStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(readString(in));
+        }
+        in.endArray();
+        return list;
+    }
+
+    private static List<ServiceRegistration.Endpoint> readEndpoints(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<ServiceRegistration.Endpoint> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(ENDPOINT.read(in));
+        }
+        in.endArray();
+        return list;
+    }
+}
@@ -0,0 +1,125 @@
+package seven.lab.wstun.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * Binary relay frame carried in a WebSocket binary frame.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   0      1      2      3
+ *   +------+------+------+----------------------+------------------+
+ *   |opcode|flags |idLen | request id (idLen B) | raw body bytes   |
+ *   +------+------+------+----------------------+------------------+
+ * </pre>
+ * The request id is ASCII and matches the request_id used by the JSON
+ * relay messages, so binary and JSON frames can be mixed for one request.
+ */
+public class RelayFrame {
+
+    // Server -> service: body of an http_request sent with "binary": true
+    public static final int OP_REQUEST_BODY = 0x01;
+    // Service -> server: body of an http_response sent with "binary": true
+    public static final int OP_RESPONSE_BODY = 0x02;
+    // Service -> server: streamed chunk following http_response_start
+    public static final int OP_RESPONSE_CHUNK = 0x03;
+    // Server -> service: streamed request body chunk following http_request with "streaming": true
+    public static final int OP_REQUEST_CHUNK = 0x04;
+
+    // Last frame for this request id
+    public static final int FLAG_FIN = 0x01;
+
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_REQUEST_ID_LENGTH = 255;
+
+    private final int opcode;
+    private final int flags;
+    private final String requestId;
+    private final ByteBuf data;
+
+    private RelayFrame(int opcode, int flags, String requestId, ByteBuf data) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.data = data;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isFin() {
+        return (flags & FLAG_FIN) != 0;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Body bytes as a slice of the frame content (not retained).
+     */
+    public ByteBuf getData() {
+        return data;
+    }
+
+    /**
+     * Parse a relay frame from binary frame content.
+     * Returns null if the content is too short to hold a header.
+     */
+    public static RelayFrame decode(ByteBuf content) {
+        if (content.readableBytes() < HEADER_SIZE) {
+            return null;
+        }
+        int base = content.readerIndex();
+        int opcode = content.getUnsignedByte(base);
+        int flags = content.getUnsignedByte(base + 1);
+        int idLength = content.getUnsignedByte(base + 2);
+        if (content.readableBytes() < HEADER_SIZE + idLength) {
+            return null;
+        }
+        String requestId = content.toString(base + HEADER_SIZE, idLength, StandardCharsets.US_ASCII);
+        int dataOffset = base + HEADER_SIZE + idLength;
+        ByteBuf data = content.slice(dataOffset, content.writerIndex() - dataOffset);
+        return new RelayFrame(opcode, flags, requestId, data);
+    }
+
+    /**
+     * Build frame content from a header and body.
+     * Takes ownership of body (may be null); the body bytes are not copied.
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, int opcode, int flags, String requestId, ByteBuf body) {
+        byte[] id = requestId.getBytes(StandardCharsets.US_ASCII);
+        if (id.length > MAX_REQUEST_ID_LENGTH) {
+            if (body != null) {
+                body.release();
+            }
+            throw new IllegalArgumentException("Request id too long: " + requestId);
+        }
+
+        ByteBuf header = alloc.buffer(HEADER_SIZE + id.length);
+        header.writeByte(opcode);
+        header.writeByte(flags);
+        header.writeByte(id.length);
+        header.writeBytes(id);
+
+        if (body == null || !body.isReadable()) {
+            if (body != null) {
+                body.release();
+            }
+            return header;
+        }
+
+        CompositeByteBuf composite = alloc.compositeBuffer(2);
+        composite.addComponents(true, header, body);
+        return composite;
+    }
+}
@@ -28,6 +28,45 @@ public class ServiceRegistration {
     @SerializedName("auth_token")
     private String authToken;  // Optional auth token for clients to access this service
 
+    @SerializedName("binary_relay")
+    private boolean binaryRelay;  // Receive request bodies as binary relay frames
+
+    @SerializedName("stream_requests")
+    private boolean streamRequests;  // Receive request bodies incrementally as http_request_chunk
+
+    @SerializedName("first_byte_timeout_ms")
+    private long firstByteTimeoutMs;  // Time allowed before a response starts; 0 for the server default
+
+    @SerializedName("idle_timeout_ms")
+    private long idleTimeoutMs;  // Time a started response may go without progress; 0 for the server default
+
+    @SerializedName("coalesce_gets")
+    private boolean coalesceGets;  // Share one relay between identical GETs in flight at the same time
+
+    @SerializedName("coalesce_vary")
+    private List<String> coalesceVary;  // Request headers that make otherwise identical GETs distinct
+
+    @SerializedName("pool")
+    private boolean pool;  // Share the name with other providers that also set pool (and the same auth_token)
+
+    @SerializedName("sticky_cookie")
+    private String stickyCookie;  // Cookie whose value pins a client to one provider of a pool
+
+    @SerializedName("max_in_flight")
+    private int maxInFlight;  // Relayed requests a provider works on at once; 0 for no limit
+
+    @SerializedName("max_queued")
+    private int maxQueued;  // Requests waiting beyond max_in_flight; 0 for the server default
+
+    @SerializedName("max_queue_ms")
+    private long maxQueueMs;  // Time a request may wait before it is shed with 503; 0 for the server default
+
+    @SerializedName("priority_routes")
+    private Map<String, Integer> priorityRoutes;  // Path prefix -> priority for queued requests (higher first)
+
+    @SerializedName("priority_header")
+    private String priorityHeader;  // Request header giving the priority, overriding priority_routes
+
     public static class Endpoint {
         @SerializedName("path")
         private String path;
@@ -121,4 +160,108 @@ public class ServiceRegistration {
     public void setAuthToken(String authToken) {
         this.authToken = authToken;
     }
+    
+    public boolean isBinaryRelay() {
+        return binaryRelay;
+    }
+    
+    public void setBinaryRelay(boolean binaryRelay) {
+        this.binaryRelay = binaryRelay;
+    }
+    
+    public boolean isStreamRequests() {
+        return streamRequests;
+    }
+    
+    public void setStreamRequests(boolean streamRequests) {
+        this.streamRequests = streamRequests;
+    }
+    
+    public long getFirstByteTimeoutMs() {
+        return firstByteTimeoutMs;
+    }
+    
+    public void setFirstByteTimeoutMs(long firstByteTimeoutMs) {
+        this.firstByteTimeoutMs = firstByteTimeoutMs;
+    }
+    
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+    
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+    
+    public boolean isCoalesceGets() {
+        return coalesceGets;
+    }
+    
+    public void setCoalesceGets(boolean coalesceGets) {
+        this.coalesceGets = coalesceGets;
+    }
+    
+    public List<String> getCoalesceVary() {
+        return coalesceVary;
+    }
+    
+    public void setCoalesceVary(List<String> coalesceVary) {
+        this.coalesceVary = coalesceVary;
+    }
+    
+    public boolean isPool() {
+        return pool;
+    }
+    
+    public void setPool(boolean pool) {
+        this.pool = pool;
+    }
+    
+    public String getStickyCookie() {
+        return stickyCookie;
+    }
+    
+    public void setStickyCookie(String stickyCookie) {
+        this.stickyCookie = stickyCookie;
+    }
+    
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+    
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+    
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+    
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+    
+    public long getMaxQueueMs() {
+        return maxQueueMs;
+    }
+    
+    public void setMaxQueueMs(long maxQueueMs) {
+        this.maxQueueMs = maxQueueMs;
+    }
+    
+    public Map<String, Integer> getPriorityRoutes() {
+        return priorityRoutes;
+    }
+    
+    public void setPriorityRoutes(Map<String, Integer> priorityRoutes) {
+        this.priorityRoutes = priorityRoutes;
+    }
+    
+    public String getPriorityHeader() {
+        return priorityHeader;
+    }
+    
+    public void setPriorityHeader(String priorityHeader) {
+        this.priorityHeader = priorityHeader;
+    }
 }
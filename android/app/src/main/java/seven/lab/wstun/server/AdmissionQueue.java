@@ -0,0 +1,327 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.Timeout;
+import seven.lab.wstun.protocol.ServiceRegistration;
+
+/**
+ * Admission control for relayed requests to one service.
+ *
+ * Each provider of the service is given at most max_in_flight relayed requests at
+ * a time. Further requests wait in a bounded queue, highest priority first and in
+ * arrival order within a priority, and are relayed as providers finish earlier
+ * ones. A request that has waited max_queue_ms, or arrives when the queue is full,
+ * is answered 503 with Retry-After instead of piling onto a service that is
+ * already behind.
+ *
+ * Priority comes from the service's priority_header if the request carries it,
+ * otherwise from the longest priority_routes prefix matching the request path.
+ */
+public class AdmissionQueue {
+
+    private static final String TAG = "AdmissionQueue";
+    private static final ByteBuf OVERLOADED_BODY = HttpHandler.constantBody("Service overloaded");
+
+    public static final int DEFAULT_MAX_QUEUED = 256;
+    public static final long DEFAULT_MAX_QUEUE_MS = 5000;
+
+    /**
+     * Relays a request to the provider chosen for it.
+     */
+    public interface Dispatch {
+        void relay(ServiceManager.ServiceEntry provider);
+    }
+
+    private static final class Entry {
+        private final int priority;
+        private final long seq;
+        private final long enqueuedAt;  // System.nanoTime()
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+        private final Dispatch dispatch;
+        private Timeout timeout;
+        private ChannelFutureListener closeListener;
+
+        Entry(int priority, long seq, ChannelHandlerContext ctx, FullHttpRequest request, Dispatch dispatch) {
+            this.priority = priority;
+            this.seq = seq;
+            this.enqueuedAt = System.nanoTime();
+            this.ctx = ctx;
+            this.request = request;
+            this.dispatch = dispatch;
+        }
+    }
+
+    private final String serviceName;
+    private final ServiceManager serviceManager;
+    private final RequestManager requestManager;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long maxQueueMs;
+    private final Map<String, Integer> priorityRoutes;
+    private final String priorityHeader;
+
+    // Highest priority first, then oldest
+    private final TreeSet<Entry> queue = new TreeSet<>((a, b) -> a.priority != b.priority
+        ? Integer.compare(b.priority, a.priority) : Long.compare(a.seq, b.seq));
+    // Slots taken by requests admitted but not yet registered as pending
+    private final Map<ServiceManager.ServiceEntry, Integer> reserved = new IdentityHashMap<>();
+    private long nextSeq;
+    private long shedCount;
+    private double averageWaitMs;  // Moving average over admitted requests
+
+    public AdmissionQueue(String serviceName, ServiceRegistration registration,
+                          ServiceManager serviceManager, RequestManager requestManager) {
+        this.serviceName = serviceName;
+        this.serviceManager = serviceManager;
+        this.requestManager = requestManager;
+        this.maxInFlight = registration.getMaxInFlight();
+        this.maxQueued = registration.getMaxQueued() > 0 ? registration.getMaxQueued() : DEFAULT_MAX_QUEUED;
+        this.maxQueueMs = registration.getMaxQueueMs() > 0 ? registration.getMaxQueueMs() : DEFAULT_MAX_QUEUE_MS;
+        this.priorityRoutes = registration.getPriorityRoutes();
+        this.priorityHeader = registration.getPriorityHeader();
+    }
+
+    /**
+     * Relay a request now if a provider has room, otherwise queue it.
+     * Called on the request's event loop while the request is still valid.
+     */
+    public void submit(ChannelHandlerContext ctx, FullHttpRequest request, String path, Dispatch dispatch) {
+        ServiceManager.ServiceEntry provider = null;
+        boolean full = false;
+        synchronized (this) {
+            // Newcomers do not overtake requests already waiting
+            if (queue.isEmpty()) {
+                provider = reserve(request);
+            }
+            if (provider == null && queue.size() >= maxQueued) {
+                shedCount++;
+                full = true;
+            } else if (provider == null) {
+                Entry entry = new Entry(priority(path, request), nextSeq++, ctx, request.retain(), dispatch);
+                queue.add(entry);
+                entry.timeout = requestManager.newTimeout(t -> expire(entry), maxQueueMs);
+                entry.closeListener = f -> abandon(entry);
+                ctx.channel().closeFuture().addListener(entry.closeListener);
+            }
+        }
+        if (provider != null) {
+            try {
+                dispatch.relay(provider);
+            } finally {
+                unreserve(provider);
+            }
+        } else if (full) {
+            Log.w(TAG, "Queue full for " + serviceName);
+            shed(ctx, request);
+        }
+    }
+
+    /**
+     * Relay queued requests to providers that have room. Called whenever a
+     * provider finishes a request or joins the service.
+     */
+    public void drain() {
+        List<Entry> ready = new ArrayList<>();
+        List<ServiceManager.ServiceEntry> providers = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                // Skipped if its provider is busy; others may still fit elsewhere
+                ServiceManager.ServiceEntry provider = reserve(entry.request);
+                if (provider == null) {
+                    continue;
+                }
+                iterator.remove();
+                dequeued(entry);
+                double waitMs = (System.nanoTime() - entry.enqueuedAt) / 1e6;
+                averageWaitMs = averageWaitMs == 0 ? waitMs : averageWaitMs * 0.9 + waitMs * 0.1;
+                ready.add(entry);
+                providers.add(provider);
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            Entry entry = ready.get(i);
+            ServiceManager.ServiceEntry provider = providers.get(i);
+            entry.ctx.executor().execute(() -> {
+                try {
+                    if (entry.ctx.channel().isActive()) {
+                        entry.dispatch.relay(provider);
+                    }
+                } finally {
+                    entry.request.release();
+                    unreserve(provider);
+                }
+            });
+        }
+    }
+
+    /**
+     * Answer every queued request with 503 (the service went away).
+     */
+    public void failAll() {
+        List<Entry> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+            for (Entry entry : dropped) {
+                dequeued(entry);
+            }
+        }
+        for (Entry entry : dropped) {
+            entry.ctx.executor().execute(() -> {
+                shed(entry.ctx, entry.request);
+                entry.request.release();
+            });
+        }
+    }
+
+    /**
+     * Queue depth and waiting times, for the services API.
+     */
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("maxInFlight", maxInFlight);
+        stats.addProperty("queued", queue.size());
+        stats.addProperty("maxQueued", maxQueued);
+        stats.addProperty("averageWaitMs", Math.round(averageWaitMs));
+        stats.addProperty("oldestWaitMs", queue.isEmpty() ? 0
+            : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest().enqueuedAt));
+        stats.addProperty("shed", shedCount);
+        return stats;
+    }
+
+    private Entry oldest() {
+        Entry oldest = null;
+        for (Entry entry : queue) {
+            if (oldest == null || entry.seq < oldest.seq) {
+                oldest = entry;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Take a slot on the provider chosen for the request, or null if it has none free.
+     */
+    private ServiceManager.ServiceEntry reserve(FullHttpRequest request) {
+        ServiceManager.ServiceEntry provider = serviceManager.pickProvider(serviceName, request);
+        if (provider == null || !provider.isConnected()) {
+            return null;
+        }
+        Integer taken = reserved.get(provider);
+        int load = provider.getOutstanding() + (taken != null ? taken : 0);
+        if (load >= maxInFlight) {
+            return null;
+        }
+        reserved.put(provider, taken != null ? taken + 1 : 1);
+        return provider;
+    }
+
+    /**
+     * Give back a reservation once the request is pending (or was answered without
+     * reaching the provider), and admit whatever now fits.
+     */
+    private void unreserve(ServiceManager.ServiceEntry provider) {
+        synchronized (this) {
+            Integer taken = reserved.get(provider);
+            if (taken != null && taken > 1) {
+                reserved.put(provider, taken - 1);
+            } else {
+                reserved.remove(provider);
+            }
+        }
+        drain();
+    }
+
+    private void dequeued(Entry entry) {
+        entry.timeout.cancel();
+        entry.ctx.channel().closeFuture().removeListener(entry.closeListener);
+    }
+
+    private void expire(Entry entry) {
+        synchronized (this) {
+            if (!queue.remove(entry)) {
+                return;
+            }
+            dequeued(entry);
+            shedCount++;
+        }
+        Log.w(TAG, "Shedding request to " + serviceName + " after " + maxQueueMs + " ms in queue");
+        entry.ctx.executor().execute(() -> {
+            shed(entry.ctx, entry.request);
+            entry.request.release();
+        });
+    }
+
+    private void abandon(Entry entry) {
+        synchronized (this) {
+            if (!queue.remove(entry)) {
+                return;
+            }
+            dequeued(entry);
+        }
+        entry.request.release();
+    }
+
+    private int priority(String path, FullHttpRequest request) {
+        if (priorityHeader != null) {
+            String value = request.headers().get(priorityHeader);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    // Fall back to the route
+                }
+            }
+        }
+        if (priorityRoutes == null) {
+            return 0;
+        }
+        String relative = path.substring(Math.min(path.length(), serviceName.length() + 1));
+        int priority = 0;
+        int matched = -1;
+        for (Map.Entry<String, Integer> route : priorityRoutes.entrySet()) {
+            String prefix = route.getKey();
+            if (relative.startsWith(prefix) && prefix.length() > matched && route.getValue() != null) {
+                priority = route.getValue();
+                matched = prefix.length();
+            }
+        }
+        return priority;
+    }
+
+    private void shed(ChannelHandlerContext ctx, FullHttpRequest request) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, OVERLOADED_BODY.duplicate());
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, OVERLOADED_BODY.readableBytes());
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, Math.max(1, (maxQueueMs + 999) / 1000));
+        HttpHandler.addStaticCorsHeaders(response);
+        HttpHandler.writeResponse(ctx, request, response);
+    }
+}
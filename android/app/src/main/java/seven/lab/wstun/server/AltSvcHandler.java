@@ -0,0 +1,33 @@
+package seven.lab.wstun.server;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Advertises the HTTP/3 listener on TCP responses, so browsers move later
+ * requests to QUIC.
+ */
+@ChannelHandler.Sharable
+public class AltSvcHandler extends ChannelOutboundHandlerAdapter {
+
+    private final String value;
+
+    public AltSvcHandler(int port, int maxAgeSeconds) {
+        this.value = "h3=\":" + port + "\"; ma=" + maxAgeSeconds;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (!response.headers().contains(HttpHeaderNames.ALT_SVC)) {
+                response.headers().set(HttpHeaderNames.ALT_SVC, value);
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+}
@@ -0,0 +1,391 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Size-capped, LRU-evicted disk cache of relayed file downloads.
+ *
+ * Full fileshare downloads are teed into a temporary file while they stream from
+ * the owner (see DownloadGroup). If the stream completes with its advertised
+ * Content-Length, the file is committed under its file id. Later downloads of that
+ * id are then served from disk with zero-copy I/O, without asking the owner.
+ * Entries are purged when the owner removes the file or disconnects, so an owner
+ * can always revoke what it shared.
+ *
+ * Each entry is a data file plus a JSON sidecar holding the response headers, so
+ * the cache survives server restarts. Disk writes run on a single background
+ * thread to keep them off the event loops; at most MAX_QUEUED_BYTES may wait for
+ * it, past which a download simply stops being cached.
+ */
+public class BlobCache {
+
+    private static final String TAG = "BlobCache";
+    private static final Gson gson = new Gson();
+
+    private static final String DATA_SUFFIX = ".blob";
+    private static final String META_SUFFIX = ".json";
+    private static final String PART_SUFFIX = ".part";
+
+    // Chunks waiting for the disk thread, across all writers
+    private static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Writers not yet committed or aborted, so a purge can stop them publishing
+    private final Set<EntryWriter> openWriters = new HashSet<>();
+
+    /**
+     * A committed cache entry.
+     */
+    public static class Entry {
+        private final String fileId;
+        private final File file;
+        private final long length;
+        private final JsonObject headers;
+
+        Entry(String fileId, File file, long length, JsonObject headers) {
+            this.fileId = fileId;
+            this.file = file;
+            this.length = length;
+            this.headers = headers;
+        }
+
+        public String getFileId() { return fileId; }
+        public File getFile() { return file; }
+        public long getLength() { return length; }
+        public JsonObject getHeaders() { return headers; }
+    }
+
+    public BlobCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache directory: " + dir);
+        }
+        load();
+    }
+
+    /**
+     * Look up a committed entry and mark it recently used.
+     */
+    public synchronized Entry get(String fileId) {
+        Entry entry = entries.get(fileId);
+        if (entry != null && !entry.file.exists()) {
+            entries.remove(fileId);
+            totalBytes -= entry.length;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Start caching a download of the given length.
+     * Returns null if the file cannot be cached (unknown length or larger than the cache).
+     */
+    public EntryWriter open(String fileId, JsonObject headers, long length) {
+        if (length <= 0 || length > maxBytes) {
+            return null;
+        }
+        EntryWriter writer = new EntryWriter(fileId, headers, length);
+        synchronized (this) {
+            openWriters.add(writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Drop a file's entry, and any download of it still being cached.
+     */
+    public void purge(String fileId) {
+        purgeMatching(id -> id.equals(fileId));
+    }
+
+    /**
+     * Drop the entries of every file shared by a user (global ids are "userId/localId").
+     */
+    public void purgeOwner(String ownerId) {
+        String prefix = ownerId + "/";
+        purgeMatching(id -> id.startsWith(prefix));
+    }
+
+    private synchronized void purgeMatching(Predicate<String> matches) {
+        for (EntryWriter writer : openWriters) {
+            if (matches.test(writer.fileId)) {
+                writer.failed = true;
+            }
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (matches.test(entry.fileId)) {
+                iterator.remove();
+                remove(entry);
+                Log.d(TAG, "Purged " + entry.fileId);
+            }
+        }
+    }
+
+    /**
+     * Stop the disk thread. Writes in progress are abandoned.
+     */
+    public void shutdown() {
+        diskExecutor.shutdownNow();
+    }
+
+    /**
+     * Tee for one download. Chunks are written in order on the disk thread;
+     * commit() publishes the entry only if exactly length bytes arrived.
+     */
+    public class EntryWriter {
+        private final String fileId;
+        private final JsonObject headers;
+        private final long length;
+        private final File part;
+        private FileChannel channel;
+        private long written;
+        // Set by the disk thread, a full queue or a purge; the entry is then never published
+        private volatile boolean failed;
+
+        EntryWriter(String fileId, JsonObject headers, long length) {
+            this.fileId = fileId;
+            this.headers = headers;
+            this.length = length;
+            // Unique per writer: a second download of the same file may be cached concurrently
+            this.part = new File(dir, keyFor(fileId) + "-" + System.nanoTime() + PART_SUFFIX);
+        }
+
+        /**
+         * Append a chunk. Takes ownership of data.
+         * If the disk thread has fallen too far behind, the entry is abandoned instead.
+         */
+        public void write(ByteBuf data) {
+            int size = data.readableBytes();
+            if (failed || queuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+                if (!failed) {
+                    queuedBytes.addAndGet(-size);
+                    Log.w(TAG, "Disk queue full, not caching " + fileId);
+                    failed = true;
+                }
+                data.release();
+                return;
+            }
+            diskExecutor.execute(() -> {
+                try {
+                    if (failed) {
+                        return;
+                    }
+                    if (channel == null) {
+                        channel = new FileOutputStream(part).getChannel();
+                    }
+                    for (ByteBuffer buffer : data.nioBuffers()) {
+                        while (buffer.hasRemaining()) {
+                            written += channel.write(buffer);
+                        }
+                    }
+                    if (written > length) {
+                        failed = true;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write cache entry for " + fileId + ": " + e.getMessage());
+                    failed = true;
+                } finally {
+                    queuedBytes.addAndGet(-size);
+                    data.release();
+                }
+            });
+        }
+
+        public void commit() {
+            diskExecutor.execute(() -> {
+                close();
+                if (failed || written != length) {
+                    closed(this);
+                    part.delete();
+                    return;
+                }
+                publish(this, part);
+            });
+        }
+
+        public void abort() {
+            diskExecutor.execute(() -> {
+                close();
+                closed(this);
+                part.delete();
+            });
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private synchronized void closed(EntryWriter writer) {
+        openWriters.remove(writer);
+    }
+
+    private void publish(EntryWriter writer, File part) {
+        String fileId = writer.fileId;
+        long length = writer.length;
+        JsonObject headers = writer.headers;
+        String key = keyFor(fileId);
+        File data = new File(dir, key + DATA_SUFFIX);
+        File meta = new File(dir, key + META_SUFFIX);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("file_id", fileId);
+        json.addProperty("length", length);
+        json.add("headers", headers != null ? headers : new JsonObject());
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(meta), StandardCharsets.UTF_8)) {
+            out.write(gson.toJson(json));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache metadata for " + fileId + ": " + e.getMessage());
+            part.delete();
+            return;
+        }
+        if (!part.renameTo(data)) {
+            part.delete();
+            meta.delete();
+            return;
+        }
+
+        synchronized (this) {
+            openWriters.remove(writer);
+            if (writer.failed) {
+                // Purged while the last chunks were being written
+                data.delete();
+                meta.delete();
+                return;
+            }
+            Entry previous = entries.put(fileId, new Entry(fileId, data, length, headers));
+            if (previous != null) {
+                totalBytes -= previous.length;
+            }
+            totalBytes += length;
+            evict();
+        }
+        Log.d(TAG, "Cached " + fileId + " (" + length + " bytes, " + totalBytes + " total)");
+    }
+
+    /**
+     * Drop least recently used entries until the cache fits its cap.
+     * Files being served keep working: an unlinked file stays readable while open.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            remove(entry);
+            Log.d(TAG, "Evicted " + entry.fileId);
+        }
+    }
+
+    /**
+     * Delete an entry already taken out of the index.
+     */
+    private void remove(Entry entry) {
+        totalBytes -= entry.length;
+        entry.file.delete();
+        new File(dir, keyFor(entry.fileId) + META_SUFFIX).delete();
+    }
+
+    /**
+     * Rebuild the index from disk, oldest first, and discard incomplete writes.
+     */
+    private synchronized void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> metas = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(PART_SUFFIX)) {
+                file.delete();
+            } else if (file.getName().endsWith(META_SUFFIX)) {
+                metas.add(file);
+            }
+        }
+        File[] sorted = metas.toArray(new File[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for (File meta : sorted) {
+            String name = meta.getName();
+            File data = new File(dir, name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX);
+            try (Reader in = new InputStreamReader(new FileInputStream(meta), StandardCharsets.UTF_8)) {
+                JsonObject json = gson.fromJson(in, JsonObject.class);
+                String fileId = json.get("file_id").getAsString();
+                long length = json.get("length").getAsLong();
+                if (!data.exists() || data.length() != length) {
+                    meta.delete();
+                    data.delete();
+                    continue;
+                }
+                entries.put(fileId, new Entry(fileId, data, length, json.getAsJsonObject("headers")));
+                totalBytes += length;
+            } catch (Exception e) {
+                Log.w(TAG, "Discarding unreadable cache entry " + name + ": " + e.getMessage());
+                meta.delete();
+                data.delete();
+            }
+        }
+        evict();
+        Log.i(TAG, "Loaded " + entries.size() + " cached files (" + totalBytes + " bytes)");
+    }
+
+    private static String keyFor(String fileId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(fileId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Server-hosted files uploaded through /_api/blobs.
+ *
+ * Uploads follow the tus resumable upload model: a blob is created with its
+ * final length, then filled by appending at the current offset. The offset is
+ * simply the number of bytes on disk, so an interrupted upload resumes where it
+ * stopped, even across server restarts. Appends are written in order on a single
+ * background thread, straight from the request's buffers.
+ *
+ * A completed blob is registered in the ServiceManager file registry, without an
+ * owner channel, and downloaded from disk like any other shared file. Incomplete
+ * uploads that made no progress for UPLOAD_EXPIRY_MS are discarded at startup.
+ */
+public class BlobStore {
+
+    private static final String TAG = "BlobStore";
+    private static final Gson gson = new Gson();
+
+    private static final String DATA_SUFFIX = ".blob";
+    private static final String META_SUFFIX = ".json";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final long UPLOAD_EXPIRY_MS = 24 * 60 * 60 * 1000L;
+    // Disk space left free for the rest of the device
+    private static final long RESERVED_SPACE = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final ServiceManager serviceManager;
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * An upload in progress or a completed blob.
+     */
+    public static class Blob {
+        private final String id;
+        private final long length;
+        private final String filename;
+        private final String mimeType;
+        private volatile long offset;
+        private volatile boolean complete;
+        // Set by delete; appends still queued then fail instead of recreating the file
+        private volatile boolean deleted;
+        // Held by the one request currently appending
+        private final AtomicBoolean locked = new AtomicBoolean();
+        private FileChannel channel;  // disk thread only
+
+        Blob(String id, long length, String filename, String mimeType) {
+            this.id = id;
+            this.length = length;
+            this.filename = filename;
+            this.mimeType = mimeType;
+        }
+
+        public String getId() { return id; }
+        public long getLength() { return length; }
+        public String getFilename() { return filename; }
+        public String getMimeType() { return mimeType; }
+        public long getOffset() { return offset; }
+        public boolean isComplete() { return complete; }
+    }
+
+    public BlobStore(File dir, ServiceManager serviceManager) {
+        this.dir = dir;
+        this.serviceManager = serviceManager;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create blob directory: " + dir);
+        }
+        load();
+    }
+
+    /**
+     * Create an empty upload of the given length.
+     * Returns null if there is not enough free space for it.
+     */
+    public Blob create(long length, String filename, String mimeType) {
+        if (length < 0 || dir.getUsableSpace() - RESERVED_SPACE < length) {
+            return null;
+        }
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Blob blob = new Blob(id, length, filename != null ? filename : id,
+            mimeType != null ? mimeType : "application/octet-stream");
+        try {
+            writeMeta(blob);
+            if (!partFile(blob).createNewFile()) {
+                throw new IOException("exists");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create blob " + id + ": " + e.getMessage());
+            metaFile(blob).delete();
+            return null;
+        }
+        blobs.put(id, blob);
+        if (length == 0) {
+            diskExecutor.execute(() -> complete(blob));
+        }
+        Log.d(TAG, "Created blob " + id + " (" + length + " bytes)");
+        return blob;
+    }
+
+    public Blob get(String id) {
+        return id != null ? blobs.get(id) : null;
+    }
+
+    /**
+     * Take the exclusive right to append to an upload.
+     */
+    public boolean lock(Blob blob) {
+        return blob.locked.compareAndSet(false, true);
+    }
+
+    /**
+     * Release the upload once all appends queued so far are on disk.
+     */
+    public void unlock(Blob blob) {
+        diskExecutor.execute(() -> {
+            closeChannel(blob);
+            blob.locked.set(false);
+        });
+    }
+
+    /**
+     * Append data at the current offset. Takes ownership of data.
+     * The future completes once it is on disk, and fails if it could not be written.
+     */
+    public Future<Void> append(Blob blob, ByteBuf data) {
+        Promise<Void> written = ImmediateEventExecutor.INSTANCE.newPromise();
+        diskExecutor.execute(() -> {
+            try {
+                if (blob.deleted) {
+                    throw new IOException("Blob deleted");
+                }
+                if (blob.complete || blob.offset + data.readableBytes() > blob.length) {
+                    throw new IOException("Write past end of blob");
+                }
+                if (blob.channel == null) {
+                    blob.channel = new FileOutputStream(partFile(blob), true).getChannel();
+                }
+                for (ByteBuffer buffer : data.nioBuffers()) {
+                    while (buffer.hasRemaining()) {
+                        blob.offset += blob.channel.write(buffer);
+                    }
+                }
+                if (blob.offset == blob.length) {
+                    complete(blob);
+                }
+                written.setSuccess(null);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write blob " + blob.id + ": " + e.getMessage());
+                written.setFailure(e);
+            } finally {
+                data.release();
+            }
+        });
+        return written;
+    }
+
+    /**
+     * Completes once every append queued so far has been written.
+     */
+    public Future<Void> sync() {
+        Promise<Void> done = ImmediateEventExecutor.INSTANCE.newPromise();
+        diskExecutor.execute(() -> done.setSuccess(null));
+        return done;
+    }
+
+    /**
+     * The file to read a completed blob from.
+     */
+    public File getFile(Blob blob) {
+        return dataFile(blob);
+    }
+
+    /**
+     * Response headers for downloads of a completed blob.
+     */
+    public JsonObject getHeaders(Blob blob) {
+        JsonObject headers = new JsonObject();
+        headers.addProperty("Content-Type", blob.mimeType);
+        headers.addProperty("Content-Disposition",
+            "attachment; filename=\"" + blob.filename.replace("\"", "") + "\"");
+        headers.addProperty("ETag", "\"" + blob.id + "\"");
+        headers.addProperty("Accept-Ranges", "bytes");
+        return headers;
+    }
+
+    public void delete(String id) {
+        Blob blob = blobs.remove(id);
+        if (blob == null) {
+            return;
+        }
+        blob.deleted = true;
+        serviceManager.unregisterFile(id);
+        diskExecutor.execute(() -> {
+            closeChannel(blob);
+            partFile(blob).delete();
+            dataFile(blob).delete();
+            metaFile(blob).delete();
+        });
+        Log.d(TAG, "Deleted blob " + id);
+    }
+
+    /**
+     * Stop the disk thread. Appends in progress are abandoned; the bytes already
+     * written stay and the upload can be resumed after a restart.
+     */
+    public void shutdown() {
+        diskExecutor.shutdownNow();
+    }
+
+    private void complete(Blob blob) {
+        closeChannel(blob);
+        if (blob.deleted) {
+            return;
+        }
+        if (!partFile(blob).renameTo(dataFile(blob))) {
+            Log.w(TAG, "Failed to finish blob " + blob.id);
+            return;
+        }
+        blob.complete = true;
+        try {
+            writeMeta(blob);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to update metadata for blob " + blob.id + ": " + e.getMessage());
+        }
+        register(blob);
+        Log.i(TAG, "Blob complete: " + blob.filename + " (" + blob.id + ", " + blob.length + " bytes)");
+    }
+
+    private void register(Blob blob) {
+        serviceManager.registerStoredFile(new ServiceManager.FileInfo(
+            blob.id, blob.filename, blob.length, blob.mimeType, "server", null));
+    }
+
+    private static void closeChannel(Blob blob) {
+        if (blob.channel != null) {
+            try {
+                blob.channel.close();
+            } catch (IOException ignored) {
+            }
+            blob.channel = null;
+        }
+    }
+
+    private void writeMeta(Blob blob) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", blob.id);
+        json.addProperty("length", blob.length);
+        json.addProperty("filename", blob.filename);
+        json.addProperty("mime_type", blob.mimeType);
+        json.addProperty("complete", blob.complete);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(metaFile(blob)), StandardCharsets.UTF_8)) {
+            out.write(gson.toJson(json));
+        }
+    }
+
+    /**
+     * Rebuild the index from disk: re-register completed blobs and resume
+     * incomplete uploads at the length of their part file.
+     */
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File meta : files) {
+            String name = meta.getName();
+            if (!name.endsWith(META_SUFFIX)) {
+                continue;
+            }
+            try (Reader in = new InputStreamReader(new FileInputStream(meta), StandardCharsets.UTF_8)) {
+                JsonObject json = gson.fromJson(in, JsonObject.class);
+                Blob blob = new Blob(json.get("id").getAsString(), json.get("length").getAsLong(),
+                    json.get("filename").getAsString(), json.get("mime_type").getAsString());
+                boolean complete = json.get("complete").getAsBoolean();
+                File data = complete ? dataFile(blob) : partFile(blob);
+                boolean valid = data.exists() && (complete ? data.length() == blob.length
+                    : data.length() <= blob.length && now - data.lastModified() < UPLOAD_EXPIRY_MS);
+                if (!valid) {
+                    data.delete();
+                    meta.delete();
+                    continue;
+                }
+                blob.offset = data.length();
+                blob.complete = complete;
+                if (!complete && blob.offset == blob.length) {
+                    complete(blob);
+                }
+                blobs.put(blob.id, blob);
+                if (blob.complete) {
+                    register(blob);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Discarding unreadable blob " + name + ": " + e.getMessage());
+                meta.delete();
+            }
+        }
+        Log.i(TAG, "Loaded " + blobs.size() + " blobs");
+    }
+
+    private File partFile(Blob blob) {
+        return new File(dir, blob.id + PART_SUFFIX);
+    }
+
+    private File dataFile(Blob blob) {
+        return new File(dir, blob.id + DATA_SUFFIX);
+    }
+
+    private File metaFile(Blob blob) {
+        return new File(dir, blob.id + META_SUFFIX);
+    }
+}
@@ -0,0 +1,240 @@
+package seven.lab.wstun.server;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import seven.lab.wstun.config.ServerConfig;
+
+/**
+ * Writes PATCH /_api/blobs/{id} bodies straight to the BlobStore without aggregation.
+ *
+ * Sits in front of the HttpObjectAggregator, like StreamingRelayHandler. The
+ * request must carry the upload's current Upload-Offset; each HttpContent is then
+ * appended as it arrives and the response reports the new offset. If the
+ * connection drops mid-request, the bytes received so far are kept and the client
+ * resumes from the offset reported by HEAD.
+ *
+ * Flow control: reading from the client is paused while more than
+ * MAX_QUEUED_BYTES are waiting for the disk.
+ */
+public class BlobUploadHandler extends ChannelInboundHandlerAdapter {
+
+    private static final String TAG = "BlobUploadHandler";
+
+    static final String TUS_RESUMABLE = "Tus-Resumable";
+    static final String TUS_VERSION = "1.0.0";
+    static final String UPLOAD_LENGTH = "Upload-Length";
+    static final String UPLOAD_OFFSET = "Upload-Offset";
+    static final String UPLOAD_METADATA = "Upload-Metadata";
+    private static final String OFFSET_CONTENT_TYPE = "application/offset+octet-stream";
+    private static final String PATH_PREFIX = "/_api/blobs/";
+
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final BlobStore blobStore;
+    private final ServerConfig serverConfig;
+
+    // The PATCH request being received (null when passing through)
+    private Upload upload;
+
+    private static final class Upload {
+        private final HttpRequest request;
+        private final BlobStore.Blob blob;  // null once the request has been rejected
+        private long remaining;             // bytes the upload can still take
+        private long queuedBytes;
+        private HttpResponseStatus error;
+
+        Upload(HttpRequest request, BlobStore.Blob blob) {
+            this.request = request;
+            this.blob = blob;
+            this.remaining = blob != null ? blob.getLength() - blob.getOffset() : 0;
+        }
+    }
+
+    public BlobUploadHandler(BlobStore blobStore, ServerConfig serverConfig) {
+        this.blobStore = blobStore;
+        this.serverConfig = serverConfig;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            if (isUpload(request)) {
+                startUpload(ctx, request);
+                if (msg instanceof HttpContent) {
+                    writeContent(ctx, (HttpContent) msg);
+                } else {
+                    ReferenceCountUtil.release(msg);
+                }
+                return;
+            }
+        } else if (msg instanceof HttpContent && upload != null) {
+            writeContent(ctx, (HttpContent) msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private boolean isUpload(HttpRequest request) {
+        if (request.method() != HttpMethod.PATCH) {
+            return false;
+        }
+        String path = new QueryStringDecoder(request.uri()).path();
+        // Unauthenticated requests fall through to HttpHandler, which rejects them
+        return path.startsWith(PATH_PREFIX) && path.indexOf('/', PATH_PREFIX.length()) < 0
+            && HttpHandler.validateServerAuth(serverConfig, request);
+    }
+
+    private void startUpload(ChannelHandlerContext ctx, HttpRequest request) {
+        String id = new QueryStringDecoder(request.uri()).path().substring(PATH_PREFIX.length());
+        BlobStore.Blob blob = blobStore.get(id);
+
+        HttpResponseStatus error = null;
+        String contentType = request.headers().get(HttpHeaderNames.CONTENT_TYPE, "");
+        if (blob == null) {
+            error = HttpResponseStatus.NOT_FOUND;
+        } else if (!contentType.toLowerCase().startsWith(OFFSET_CONTENT_TYPE)) {
+            error = HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+        } else if (!blobStore.lock(blob)) {
+            // Another request (possibly one whose connection just dropped) is still appending
+            error = HttpResponseStatus.LOCKED;
+        } else if (!String.valueOf(blob.getOffset()).equals(request.headers().get(UPLOAD_OFFSET))) {
+            blobStore.unlock(blob);
+            error = HttpResponseStatus.CONFLICT;
+        }
+
+        if (error != null) {
+            // The body is not wanted; answer now and close rather than read it
+            upload = new Upload(request, null);
+            FullHttpResponse response = newStatusResponse(error, blob);
+            HttpHandler.writeResponse(ctx, null, response);
+            Log.d(TAG, "Rejected upload to " + id + ": " + error);
+            return;
+        }
+
+        upload = new Upload(request, blob);
+        if (HttpUtil.is100ContinueExpected(request)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+    }
+
+    private void writeContent(ChannelHandlerContext ctx, HttpContent content) {
+        Upload current = upload;
+        boolean last = content instanceof LastHttpContent;
+        try {
+            int size = content.content().readableBytes();
+            if (current.blob != null && current.error == null && size > current.remaining) {
+                // Past Upload-Length; the rest of the body is discarded
+                current.error = HttpResponseStatus.BAD_REQUEST;
+            }
+            if (current.blob != null && current.error == null && size > 0) {
+                current.remaining -= size;
+                current.queuedBytes += size;
+                Future<Void> written = blobStore.append(current.blob, content.content().retain());
+                if (current.queuedBytes > MAX_QUEUED_BYTES) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+                written.addListener(f -> ctx.executor().execute(() -> onWritten(ctx, current, size, f.isSuccess())));
+            }
+        } finally {
+            content.release();
+            if (last) {
+                upload = null;
+                finishUpload(ctx, current);
+            }
+        }
+    }
+
+    private void onWritten(ChannelHandlerContext ctx, Upload current, int size, boolean success) {
+        current.queuedBytes -= size;
+        if (!success && current.error == null) {
+            // The rest of the body is discarded
+            current.error = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+        }
+        if (current.queuedBytes <= MAX_QUEUED_BYTES / 2 && !ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void finishUpload(ChannelHandlerContext ctx, Upload current) {
+        if (current.blob == null) {
+            return;
+        }
+        blobStore.sync().addListener(f -> ctx.executor().execute(() -> {
+            blobStore.unlock(current.blob);
+            HttpResponseStatus status = current.error != null ? current.error : HttpResponseStatus.NO_CONTENT;
+            HttpHandler.writeResponse(ctx, current.request, newStatusResponse(status, current.blob));
+            Log.d(TAG, "Upload " + current.blob.getId() + " at " + current.blob.getOffset()
+                + "/" + current.blob.getLength());
+        }));
+    }
+
+    /**
+     * An empty response carrying the tus headers for an upload (blob may be null).
+     */
+    static FullHttpResponse newStatusResponse(HttpResponseStatus status, BlobStore.Blob blob) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        response.headers().set(TUS_RESUMABLE, TUS_VERSION);
+        if (blob != null) {
+            response.headers().set(UPLOAD_OFFSET, blob.getOffset());
+            response.headers().set(UPLOAD_LENGTH, blob.getLength());
+        }
+        HttpHandler.addStaticCorsHeaders(response);
+        return response;
+    }
+
+    /**
+     * Parse a tus Upload-Metadata header: comma-separated "key base64value" pairs.
+     */
+    static Map<String, String> parseMetadata(String header) {
+        Map<String, String> metadata = new HashMap<>();
+        if (header == null) {
+            return metadata;
+        }
+        for (String pair : header.split(",")) {
+            String[] parts = pair.trim().split(" ", 2);
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            try {
+                String value = parts.length > 1
+                    ? new String(Base64.decode(parts[1].trim(), Base64.DEFAULT), StandardCharsets.UTF_8) : "";
+                metadata.put(parts[0], value);
+            } catch (IllegalArgumentException e) {
+                // Skip values that are not valid base64
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Keep what was received; the client resumes from the stored offset
+        if (upload != null && upload.blob != null) {
+            blobStore.unlock(upload.blob);
+        }
+        upload = null;
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,89 @@
+package seven.lab.wstun.server;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+/**
+ * Sends one WebSocket text message to many channels.
+ *
+ * The message is encoded once, and every recipient gets a retained duplicate
+ * of that buffer. Recipients are grouped by event loop: each loop gets a
+ * single task that writes to all of its channels and then flushes them, so a
+ * broadcast to a large room costs one cross-thread hop per event loop rather
+ * than one per recipient. Channels of the calling loop are written inline.
+ */
+public final class Broadcaster {
+
+    private Broadcaster() {
+    }
+
+    /**
+     * Encode json once into a pooled buffer and send it to every active channel.
+     */
+    public static void broadcast(String json, Iterable<Channel> recipients) {
+        broadcast(ByteBufUtil.writeUtf8(NettyServer.ALLOCATOR, json), recipients);
+    }
+
+    /**
+     * Send text frame content to every active channel. Takes ownership of content.
+     */
+    public static void broadcast(ByteBuf content, Iterable<Channel> recipients) {
+        try {
+            Map<EventLoop, List<Channel>> byLoop = new IdentityHashMap<>();
+            for (Channel channel : recipients) {
+                if (channel != null && channel.isActive()) {
+                    List<Channel> group = byLoop.get(channel.eventLoop());
+                    if (group == null) {
+                        group = new ArrayList<>();
+                        byLoop.put(channel.eventLoop(), group);
+                    }
+                    group.add(channel);
+                }
+            }
+            for (Map.Entry<EventLoop, List<Channel>> entry : byLoop.entrySet()) {
+                EventLoop loop = entry.getKey();
+                List<Channel> group = entry.getValue();
+                // Each group holds its own reference until its writes are queued
+                content.retain();
+                if (loop.inEventLoop()) {
+                    writeAll(content, group);
+                } else {
+                    try {
+                        loop.execute(() -> writeAll(content, group));
+                    } catch (RuntimeException e) {
+                        // Loop shutting down; its channels are closing anyway
+                        content.release();
+                    }
+                }
+            }
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Write to every channel of one event loop, then flush them. Releases one reference.
+     */
+    private static void writeAll(ByteBuf content, List<Channel> group) {
+        try {
+            for (Channel channel : group) {
+                if (channel.isActive()) {
+                    channel.write(new TextWebSocketFrame(content.retainedDuplicate()));
+                }
+            }
+            for (Channel channel : group) {
+                channel.flush();
+            }
+        } finally {
+            content.release();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package seven.lab.wstun.server;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+
+/**
+ * Chooses between HTTP/1.1 and HTTP/2 with prior knowledge (h2c) on a cleartext
+ * connection, from whether it starts with the HTTP/2 connection preface. The
+ * cleartext counterpart of ALPN: once the first bytes decide, the subclass sets
+ * up the pipeline and the buffered bytes are passed on to it.
+ */
+abstract class CleartextProtocolDetector extends ByteToMessageDecoder {
+
+    private static final ByteBuf PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
+    /**
+     * Add the handlers for protocol (an ApplicationProtocolNames value) after this one.
+     */
+    protected abstract void configurePipeline(ChannelHandlerContext ctx, String protocol);
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int length = Math.min(in.readableBytes(), PREFACE.readableBytes());
+        String protocol;
+        if (!ByteBufUtil.equals(in, in.readerIndex(), PREFACE, PREFACE.readerIndex(), length)) {
+            protocol = ApplicationProtocolNames.HTTP_1_1;
+        } else if (length == PREFACE.readableBytes()) {
+            protocol = ApplicationProtocolNames.HTTP_2;
+        } else {
+            // Wait for the rest of the preface
+            return;
+        }
+        configurePipeline(ctx, protocol);
+        ctx.pipeline().remove(this);
+    }
+}
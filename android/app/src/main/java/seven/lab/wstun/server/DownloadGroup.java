@@ -0,0 +1,322 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import seven.lab.wstun.protocol.HttpRelayResponse;
+
+/**
+ * A single producer response fanned out to every concurrent requester.
+ *
+ * The first full (non-Range) download of a file creates the group and sends one
+ * file_request to the owner. Downloads of the same file that arrive while the
+ * group is running join it: the response headers and chunks received so far are
+ * replayed from a bounded catch-up buffer, then they receive the live stream.
+ * Once more than CATCH_UP_BYTES have been streamed the group stops taking new
+ * members, and later downloads start a stream of their own.
+ *
+ * Services that register with coalesce_gets share relayed GETs the same way:
+ * identical GETs in flight at the same time (see HttpHandler.coalescingKey) join
+ * one http_request to the service.
+ *
+ * Chunks and complete bodies are shared between members as retained duplicates
+ * of one ByteBuf, so fan-out does not copy. Credit for the producer waits only
+ * for members that are keeping up (below their write buffer high water mark). A
+ * member that falls behind stops holding the stream back and keeps receiving
+ * chunks; once its backlog is MAX_LAG_BYTES past the high water mark it is
+ * disconnected, and it can resume with Range.
+ *
+ * When the relay cache is enabled for a file download, a 200 response with a
+ * Content-Length is also teed to disk and committed once the stream ends
+ * complete. If every member disconnects first, the producer's stream is cancelled.
+ */
+public class DownloadGroup implements ResponseSink {
+
+    private static final String TAG = "DownloadGroup";
+
+    // Bytes kept for late joiners; past this the group is closed to new members
+    private static final int CATCH_UP_BYTES = 4 * 1024 * 1024;
+    // Backlog past the high water mark at which a member that fell behind is dropped.
+    // Lagging members do not pace credit, so this only bounds the memory they hold.
+    private static final long MAX_LAG_BYTES = 4 * 1024 * 1024;
+
+    private final String key;
+    private final String fileId;  // null unless the response may be cached
+    private final String requestId;
+    private final RequestManager requestManager;
+    private final BlobCache blobCache;
+    private BlobCache.EntryWriter cacheWriter;
+
+    private final List<Member> members = new ArrayList<>();
+    private final List<ByteBuf> catchUp = new ArrayList<>();
+    private int catchUpBytes;
+    private boolean joinable = true;
+    private boolean finished;
+
+    // Response head, replayed to late joiners
+    private int status;
+    private JsonObject headers;
+
+    private static final class Member {
+        private final ChannelHandlerContext ctx;
+        private final HttpRequest request;
+
+        Member(ChannelHandlerContext ctx, HttpRequest request) {
+            this.ctx = ctx;
+            this.request = request;
+        }
+    }
+
+    /**
+     * A shared file download, cached under fileId when blobCache is not null.
+     */
+    public DownloadGroup(String fileId, String requestId, RequestManager requestManager, BlobCache blobCache,
+                         ChannelHandlerContext ctx, HttpRequest request) {
+        this(fileKey(fileId), fileId, requestId, requestManager, blobCache, ctx, request);
+    }
+
+    /**
+     * A shared relayed response, found by later requests under key.
+     */
+    public DownloadGroup(String key, String requestId, RequestManager requestManager,
+                         ChannelHandlerContext ctx, HttpRequest request) {
+        this(key, null, requestId, requestManager, null, ctx, request);
+    }
+
+    private DownloadGroup(String key, String fileId, String requestId, RequestManager requestManager,
+                          BlobCache blobCache, ChannelHandlerContext ctx, HttpRequest request) {
+        this.key = key;
+        this.fileId = fileId;
+        this.requestId = requestId;
+        this.requestManager = requestManager;
+        this.blobCache = blobCache;
+        addMember(new Member(ctx, request));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * The key a file download's group is registered under.
+     */
+    public static String fileKey(String fileId) {
+        return "file " + fileId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Add a downloader to the running stream.
+     * Returns false if the group has finished or its catch-up window has passed.
+     */
+    public synchronized boolean join(ChannelHandlerContext ctx, HttpRequest request) {
+        if (!joinable || finished) {
+            return false;
+        }
+        if (isStarted()) {
+            HttpHandler.startStreamingResponse(ctx, request, requestId, status, headers);
+            for (ByteBuf chunk : catchUp) {
+                HttpHandler.sendStreamingChunk(ctx, chunk.retainedDuplicate());
+            }
+        }
+        addMember(new Member(ctx, request));
+        Log.d(TAG, "Joined " + key + " (" + members.size() + " members)");
+        return true;
+    }
+
+    /**
+     * Send the streamed response head to all members.
+     */
+    @Override
+    public synchronized void start(int status, JsonObject headers) {
+        this.status = status;
+        this.headers = headers;
+        if (blobCache != null && fileId != null && status == 200 && headers != null) {
+            long length = getContentLength(headers);
+            cacheWriter = length > 0 ? blobCache.open(fileId, headers, length) : null;
+        }
+        for (Member member : new ArrayList<>(members)) {
+            HttpHandler.startStreamingResponse(member.ctx, member.request, requestId, status, headers);
+        }
+    }
+
+    /**
+     * Forward a chunk to all members. Takes ownership of data.
+     * The returned future completes once the writes of every member that is
+     * keeping up have finished, so credit for the owner follows the group's
+     * healthy members and a lagging one cannot throttle the others.
+     */
+    @Override
+    public synchronized Future<Void> chunk(ByteBuf data) {
+        Promise<Void> written = ImmediateEventExecutor.INSTANCE.newPromise();
+        try {
+            if (cacheWriter != null) {
+                cacheWriter.write(data.retainedDuplicate());
+            }
+            if (joinable) {
+                catchUp.add(data.retainedDuplicate());
+                catchUpBytes += data.readableBytes();
+                if (catchUpBytes > CATCH_UP_BYTES) {
+                    closeToJoiners();
+                }
+            }
+
+            // One count for the loop itself, so the future cannot complete before every write is queued
+            AtomicInteger remaining = new AtomicInteger(1);
+            for (Member member : new ArrayList<>(members)) {
+                Channel channel = member.ctx.channel();
+                if (lag(channel) > MAX_LAG_BYTES) {
+                    Log.w(TAG, "Dropping slow member of " + key);
+                    members.remove(member);
+                    member.ctx.close();
+                    continue;
+                }
+                ChannelFuture future = HttpHandler.sendStreamingChunk(member.ctx, data.retainedDuplicate());
+                // Only members still below the high water mark pace the producer
+                if (future == null || !channel.isWritable()) {
+                    continue;
+                }
+                remaining.incrementAndGet();
+                // A failed write means the member is gone; it no longer holds the stream back
+                future.addListener(f -> {
+                    if (remaining.decrementAndGet() == 0) {
+                        written.trySuccess(null);
+                    }
+                });
+            }
+            if (remaining.decrementAndGet() == 0) {
+                written.trySuccess(null);
+            }
+            return written;
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Finish the stream for all members.
+     */
+    @Override
+    public synchronized void end() {
+        for (Member member : new ArrayList<>(members)) {
+            HttpHandler.endStreamingResponse(member.ctx, member.request);
+        }
+        if (cacheWriter != null) {
+            cacheWriter.commit();
+            cacheWriter = null;
+        }
+        finish();
+    }
+
+    /**
+     * Answer all members with a complete (non-streamed) response.
+     * Takes ownership of body, which may be null to use the response's own body.
+     * The body is decoded once and shared by all members.
+     */
+    @Override
+    public synchronized void complete(HttpRelayResponse response, ByteBuf body) {
+        if (body == null) {
+            body = HttpHandler.decodeRelayBody(NettyServer.ALLOCATOR, response);
+        }
+        try {
+            for (Member member : new ArrayList<>(members)) {
+                HttpHandler.sendRelayResponse(member.ctx, member.request, response, body.retainedDuplicate());
+            }
+        } finally {
+            body.release();
+        }
+        finish();
+    }
+
+    /**
+     * Fail the download for all members.
+     */
+    @Override
+    public synchronized void fail(HttpResponseStatus failureStatus, String message) {
+        for (Member member : new ArrayList<>(members)) {
+            HttpHandler.sendErrorResponse(member.ctx, member.request, isStarted(), failureStatus, message);
+        }
+        finish();
+    }
+
+    /**
+     * Bytes queued on channel beyond its high water mark; 0 while it is writable.
+     */
+    private static long lag(Channel channel) {
+        long beyondLow = channel.bytesBeforeWritable();
+        if (beyondLow <= 0) {
+            return 0;
+        }
+        return beyondLow - (channel.config().getWriteBufferHighWaterMark()
+            - channel.config().getWriteBufferLowWaterMark());
+    }
+
+    private boolean isStarted() {
+        return status != 0;
+    }
+
+    private void addMember(Member member) {
+        members.add(member);
+        member.ctx.channel().closeFuture().addListener(f -> removeMember(member));
+    }
+
+    private synchronized void removeMember(Member member) {
+        members.remove(member);
+        if (members.isEmpty() && !finished) {
+            // Nobody is left to receive it; stop the producer's stream
+            Log.d(TAG, key + " abandoned");
+            finish();
+            requestManager.cancelRequest(RequestManager.parseRequestId(requestId));
+        }
+    }
+
+    private void closeToJoiners() {
+        joinable = false;
+        for (ByteBuf chunk : catchUp) {
+            chunk.release();
+        }
+        catchUp.clear();
+        catchUpBytes = 0;
+        requestManager.removeDownloadGroup(this);
+    }
+
+    private static long getContentLength(JsonObject headers) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase("Content-Length")) {
+                try {
+                    return Long.parseLong(headers.get(key).getAsString());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void finish() {
+        if (cacheWriter != null) {
+            cacheWriter.abort();
+            cacheWriter = null;
+        }
+        finished = true;
+        closeToJoiners();
+        members.clear();
+    }
+}
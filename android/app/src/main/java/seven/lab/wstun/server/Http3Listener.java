@@ -0,0 +1,108 @@
+package seven.lab.wstun.server;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3FrameToHttpObjectCodec;
+import io.netty.incubator.codec.http3.Http3ServerConnectionHandler;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.Quic;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+
+/**
+ * Experimental HTTP/3 listener: QUIC over UDP on the HTTPS port, with the same
+ * self-signed identity as the TCP listener. Every request stream gets the same
+ * handlers as an HTTP/1.1 connection or HTTP/2 stream, so requests are handled
+ * identically whichever protocol carried them.
+ *
+ * QUIC needs Netty's native library for the device ABI. Without it isAvailable
+ * is false and the server stays on TCP.
+ */
+public class Http3Listener {
+
+    private static final String TAG = "Http3Listener";
+
+    // Advertised to clients in Alt-Svc, in seconds
+    static final int ALT_SVC_MAX_AGE = 86400;
+
+    private static final long IDLE_TIMEOUT_MS = 120_000;
+    private static final long CONNECTION_WINDOW_BYTES = 8 * 1024 * 1024;
+    private static final long STREAM_WINDOW_BYTES = 1024 * 1024;
+    private static final long MAX_STREAMS = 128;
+
+    /**
+     * Whether the native QUIC library loaded on this device.
+     */
+    public static boolean isAvailable() {
+        try {
+            if (Quic.isAvailable()) {
+                return true;
+            }
+            Log.i(TAG, "QUIC unavailable: " + Quic.unavailabilityCause());
+        } catch (Throwable t) {
+            Log.i(TAG, "QUIC unavailable: " + t);
+        }
+        return false;
+    }
+
+    /**
+     * Bind the listener. streamHandlers adds the HTTP handlers to each request stream.
+     */
+    public static Channel bind(Context context, EventLoopGroup group, ByteBufAllocator allocator, int port,
+                               Consumer<ChannelPipeline> streamHandlers) throws Exception {
+        QuicSslContext sslContext = QuicSslContextBuilder
+            .forServer(SslContextFactory.getKeyManagerFactory(context), null)
+            .applicationProtocols(Http3.supportedApplicationProtocols())
+            // No 0-RTT: early data can be replayed, and relayed requests are not all safe to repeat
+            .earlyData(false)
+            .build();
+
+        ChannelHandler codec = Http3.newQuicServerCodecBuilder()
+            .sslContext(sslContext)
+            .maxIdleTimeout(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .initialMaxData(CONNECTION_WINDOW_BYTES)
+            .initialMaxStreamDataBidirectionalLocal(STREAM_WINDOW_BYTES)
+            .initialMaxStreamDataBidirectionalRemote(STREAM_WINDOW_BYTES)
+            .initialMaxStreamsBidirectional(MAX_STREAMS)
+            // Retry tokens are not checked; this listener serves the local network
+            .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+            .handler(new ChannelInitializer<QuicChannel>() {
+                @Override
+                protected void initChannel(QuicChannel connection) {
+                    Log.d(TAG, "HTTP/3 connection from: " + connection.remoteAddress());
+                    connection.pipeline().addLast(new Http3ServerConnectionHandler(
+                        new ChannelInitializer<QuicStreamChannel>() {
+                            @Override
+                            protected void initChannel(QuicStreamChannel stream) {
+                                stream.pipeline().addLast("http-codec", new Http3FrameToHttpObjectCodec(true));
+                                streamHandlers.accept(stream.pipeline());
+                            }
+                        }));
+                }
+            })
+            .build();
+
+        return new Bootstrap()
+            .group(group)
+            .channel(NioDatagramChannel.class)
+            .option(ChannelOption.ALLOCATOR, allocator)
+            .handler(codec)
+            .bind(port).sync().channel();
+    }
+}
@@ -0,0 +1,125 @@
+package seven.lab.wstun.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * gzip / deflate compression of HTTP responses, and brotli when its native
+ * library is present.
+ *
+ * Only responses worth compressing are encoded: an allowed content type, at least
+ * minBytes long when the length is known, and not already encoded. Relayed
+ * responses marked Cache-Control: no-transform and ranged responses are sent as
+ * they are, as is a response flagged with skipNextResponse (files written as a
+ * FileRegion, which the encoder cannot see).
+ */
+public class HttpCompressor extends HttpContentCompressor {
+
+    private final int minBytes;
+    private final List<String> types = new ArrayList<>();
+    private boolean skipNext;
+    private boolean skipCurrent;
+
+    /**
+     * types is a comma-separated list of MIME types. "text/*" matches a whole
+     * top-level type and "+json" a structured syntax suffix.
+     */
+    public HttpCompressor(int minBytes, String types) {
+        super(minBytes, compressionOptions());
+        this.minBytes = minBytes;
+        for (String type : types.split(",")) {
+            type = type.trim().toLowerCase(Locale.ROOT);
+            if (!type.isEmpty()) {
+                this.types.add(type);
+            }
+        }
+    }
+
+    private static CompressionOptions[] compressionOptions() {
+        if (Brotli.isAvailable()) {
+            return new CompressionOptions[] {
+                StandardCompressionOptions.brotli(),
+                StandardCompressionOptions.gzip(),
+                StandardCompressionOptions.deflate()
+            };
+        }
+        return new CompressionOptions[] {
+            StandardCompressionOptions.gzip(),
+            StandardCompressionOptions.deflate()
+        };
+    }
+
+    /**
+     * Send the next response on this connection uncompressed.
+     * Must be called on the channel's event loop before the response is written.
+     */
+    public static void skipNextResponse(ChannelPipeline pipeline) {
+        HttpCompressor compressor = pipeline.get(HttpCompressor.class);
+        if (compressor != null) {
+            compressor.skipNext = true;
+        }
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (msg instanceof HttpResponse) {
+            skipCurrent = skipNext;
+            skipNext = false;
+        }
+        super.encode(ctx, msg, out);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        HttpHeaders headers = response.headers();
+        if (skipCurrent || headers.contains(HttpHeaderNames.CONTENT_RANGE)
+                || !isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE))
+                || headers.containsValue(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_TRANSFORM, true)) {
+            return null;
+        }
+        String length = headers.get(HttpHeaderNames.CONTENT_LENGTH);
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) < minBytes) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (result != null && !headers.containsValue(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING, true)) {
+            headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        return result;
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mime = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+            .trim().toLowerCase(Locale.ROOT);
+        for (String type : types) {
+            if (type.endsWith("/*") ? mime.startsWith(type.substring(0, type.length() - 1))
+                    : type.startsWith("+") ? mime.endsWith(type) : mime.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
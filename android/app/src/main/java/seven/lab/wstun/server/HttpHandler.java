@@ -1,46 +1,62 @@
 package seven.lab.wstun.server;
 
-import android.util.Base64;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import io.netty.handler.codec.http.DefaultHttpContent;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.base64.Base64Dialect;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.stream.ChunkedNioFile;
 import seven.lab.wstun.config.ServerConfig;
 import seven.lab.wstun.protocol.HttpRelayRequest;
 import seven.lab.wstun.protocol.HttpRelayResponse;
 import seven.lab.wstun.protocol.Message;
+import seven.lab.wstun.protocol.RelayFrame;
+import seven.lab.wstun.protocol.ServiceRegistration;
 
 /**
  * HTTP request handler that routes requests to registered services.
@@ -49,6 +65,19 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     
     private static final String TAG = "HttpHandler";
     private static final Gson gson = new Gson();
+    // Upper bound on ranges in one Range header; more are ignored and the whole file is sent
+    private static final int MAX_RANGES = 16;
+    private static final String CORS_ALLOW_HEADERS =
+        "Content-Type, Authorization, X-Requested-With, Range, If-Range, " +
+        "Upload-Length, Upload-Offset, Upload-Metadata, Tus-Resumable";
+    // Response headers a cross-origin upload client needs to read
+    private static final String CORS_EXPOSE_HEADERS = "Location, Upload-Offset, Upload-Length, Tus-Resumable";
+
+    // Fixed error bodies, shared by every response as duplicates
+    private static final ByteBuf NOT_FOUND_BODY = constantBody("Not Found");
+    static final ByteBuf SERVICE_UNAVAILABLE_BODY = constantBody("Service Unavailable");
+    private static final ByteBuf FILE_NOT_FOUND_BODY = constantBody("File not found");
+    private static final ByteBuf OWNER_NOT_CONNECTED_BODY = constantBody("File owner not connected");
 
     private final ServiceManager serviceManager;
     private final RequestManager requestManager;
@@ -57,6 +86,9 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private final String corsOrigins;
     private final int port;
     private final ServerConfig serverConfig;
+    private final BlobCache blobCache;  // null when the relay cache is disabled
+    private final BlobStore blobStore;
+    private final StaticContentCache staticContentCache;
 
     private WebSocketServerHandshaker handshaker;
 
@@ -65,13 +97,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     
     // Static reference for server config (for WebSocket handler)
     private static ServerConfig staticServerConfig;
-    
-    // Track channels with active streaming responses
-    private static final Map<String, ChannelHandlerContext> streamingResponses = new ConcurrentHashMap<>();
 
     public HttpHandler(ServiceManager serviceManager, RequestManager requestManager, 
                       LocalServiceManager localServiceManager, boolean ssl, String corsOrigins, int port,
-                      ServerConfig serverConfig) {
+                      ServerConfig serverConfig, BlobCache blobCache, BlobStore blobStore) {
         this.serviceManager = serviceManager;
         this.requestManager = requestManager;
         this.localServiceManager = localServiceManager;
@@ -79,12 +108,17 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         this.corsOrigins = corsOrigins != null ? corsOrigins : "*";
         this.port = port;
         this.serverConfig = serverConfig;
+        this.blobCache = blobCache;
+        this.blobStore = blobStore;
+        // Without a local service manager nothing invalidates a shared cache
+        this.staticContentCache = localServiceManager != null ?
+            localServiceManager.getStaticContentCache() : new StaticContentCache();
         staticCorsOrigins = this.corsOrigins;
         staticServerConfig = serverConfig;
     }
 
     public HttpHandler(ServiceManager serviceManager, RequestManager requestManager, boolean ssl) {
-        this(serviceManager, requestManager, null, ssl, "*", 8080, null);
+        this(serviceManager, requestManager, null, ssl, "*", 8080, null, null, null);
     }
     
     public static ServerConfig getServerConfig() {
@@ -135,6 +169,9 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
                     // Replace this handler with WebSocket handler
                     ctx.pipeline().replace(this, "websocket", 
                         new WebSocketHandler(serviceManager, requestManager));
+                    if (ctx.pipeline().get(StreamingRelayHandler.class) != null) {
+                        ctx.pipeline().remove(StreamingRelayHandler.class);
+                    }
                     Log.i(TAG, "WebSocket connection established");
                 }
             });
@@ -228,11 +265,13 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         }
 
         // Check for static resources
-        if (service.getRegistration().getStaticResources() != null) {
+        Map<String, String> staticResources = service.getRegistration().getStaticResources();
+        if (staticResources != null) {
             String resourcePath = path.substring(serviceName.length() + 1);
-            String content = service.getRegistration().getStaticResources().get(resourcePath);
-            if (content != null) {
-                sendStaticResource(ctx, request, content, resourcePath);
+            StaticContentCache.Entry resource = staticContentCache.get(path, staticContentType(resourcePath),
+                "no-cache", () -> staticResources.get(resourcePath));
+            if (resource != null) {
+                StaticContentCache.serve(ctx, request, resource);
                 return;
             }
         }
@@ -243,56 +282,174 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
     private void relayRequest(ChannelHandlerContext ctx, FullHttpRequest request, 
                               ServiceManager.ServiceEntry service, String path) {
+        // Fresh cached responses are answered without asking the service
+        ResponseCache responseCache = requestManager.getResponseCache();
+        ResponseCache.Hit cached = responseCache != null && ResponseCache.isCacheable(request)
+            ? responseCache.lookup(service.getName(), request) : null;
+        if (cached != null && cached.isFresh()) {
+            ResponseCache.serve(ctx, request, cached);
+            return;
+        }
+
+        // Services with max_in_flight take requests through their admission queue
+        AdmissionQueue queue = service.getAdmissionQueue();
+        if (queue != null) {
+            queue.submit(ctx, request, path, provider -> sendRelay(ctx, request, provider, path, cached));
+            return;
+        }
+
+        // Otherwise straight to the least busy provider
+        ServiceManager.ServiceEntry provider = serviceManager.pickProvider(service.getName(), request);
+        sendRelay(ctx, request, provider != null ? provider : service, path, cached);
+    }
+
+    /**
+     * Send a request to one provider of a service. cached is the stale cache
+     * entry to revalidate, or null.
+     */
+    private void sendRelay(ChannelHandlerContext ctx, FullHttpRequest request,
+                           ServiceManager.ServiceEntry service, String path, ResponseCache.Hit cached) {
+        Channel serviceChannel = service.getChannel();
+        if (serviceChannel == null || !serviceChannel.isActive()) {
+            sendServiceUnavailable(ctx, request);
+            return;
+        }
+        ResponseCache responseCache = requestManager.getResponseCache();
+        boolean cacheable = responseCache != null && ResponseCache.isCacheable(request);
+
+        // Identical GETs already in flight share that relay's response
+        String coalescingKey = coalescingKey(service, request);
+        if (coalescingKey != null && requestManager.joinDownload(coalescingKey, ctx, request)) {
+            Log.d(TAG, "Coalesced request: " + coalescingKey);
+            return;
+        }
+
         // Create relay request
-        String requestId = String.valueOf(System.currentTimeMillis()) + "-" + (int)(Math.random() * 10000);
+        long requestId = requestManager.nextRequestId();
+        String wireId = String.valueOf(requestId);
         
-        HttpRelayRequest relayRequest = new HttpRelayRequest();
-        relayRequest.setRequestId(requestId);
-        relayRequest.setMethod(request.method().name());
-        relayRequest.setPath(path);
-        
-        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
-        relayRequest.setQuery(request.uri().contains("?") ? 
-            request.uri().substring(request.uri().indexOf("?") + 1) : "");
-
-        // Copy headers
-        Map<String, String> headers = new HashMap<>();
-        for (Map.Entry<String, String> entry : request.headers()) {
-            headers.put(entry.getKey(), entry.getValue());
+        HttpRelayRequest relayRequest = buildRelayRequest(wireId, request, path);
+        if (cached != null) {
+            // Revalidate the stale entry; a 304 is answered from the cache
+            relayRequest.getHeaders().keySet().removeIf(name -> name.equalsIgnoreCase("If-None-Match")
+                || name.equalsIgnoreCase("If-Modified-Since"));
+            relayRequest.getHeaders().put("If-None-Match", cached.getEtag());
         }
-        relayRequest.setHeaders(headers);
 
-        // Copy body
+        // Copy body (binary relay services get the raw bytes in a separate frame)
         ByteBuf content = request.content();
-        if (content.readableBytes() > 0) {
-            byte[] bodyBytes = new byte[content.readableBytes()];
-            content.readBytes(bodyBytes);
-            
+        boolean binaryBody = content.isReadable() && service.getRegistration().isBinaryRelay();
+        if (content.readableBytes() > 0 && !binaryBody) {
             // Check if binary
             String contentType = request.headers().get(HttpHeaderNames.CONTENT_TYPE);
             if (contentType != null && isBinaryContentType(contentType)) {
-                relayRequest.setBodyBase64(Base64.encodeToString(bodyBytes, Base64.NO_WRAP));
+                relayRequest.setBodyBase64(encodeBase64(content));
             } else {
-                relayRequest.setBody(new String(bodyBytes, StandardCharsets.UTF_8));
+                relayRequest.setBody(content.toString(StandardCharsets.UTF_8));
             }
         }
 
         // Store pending request
         PendingRequest pending = new PendingRequest(requestId, ctx, request, service.getName());
-        requestManager.addPendingRequest(pending);
+        pending.setProvider(service);
+        ResponseSink sink = null;
+        if (coalescingKey != null) {
+            DownloadGroup group = new DownloadGroup(coalescingKey, wireId, requestManager, ctx, request);
+            requestManager.addDownloadGroup(group);
+            sink = group;
+        }
+        if (cacheable) {
+            sink = responseCache.newFill(service.getName(), path, ctx, request, wireId, cached, sink);
+        }
+        pending.setSink(sink);
+        requestManager.addPendingRequest(pending, service.getRegistration().getFirstByteTimeoutMs(),
+            service.getRegistration().getIdleTimeoutMs());
+        if (cacheable && coalescingKey == null) {
+            // Not shared with other clients, so this one leaving still cancels it
+            pending.watchClient(f -> requestManager.cancelRequest(pending));
+        }
 
         // Send to service via WebSocket
         Message message = new Message(Message.TYPE_HTTP_REQUEST, service.getName());
         message.setPayload(Message.toPayload(relayRequest));
+        message.setBinary(binaryBody);
+        
+        String json = message.toJson();
+        if (service.getRegistration().isPool() && !binaryBody
+                && (request.method() == HttpMethod.GET || request.method() == HttpMethod.HEAD)) {
+            // Safe to send to another provider if this one leaves before answering
+            pending.setReplayMessage(json);
+        }
         
-        if (service.getChannel() != null && service.getChannel().isActive()) {
-            service.getChannel().writeAndFlush(new TextWebSocketFrame(message.toJson()));
+        if (binaryBody) {
+            // JSON header first, then the body; both go out on the same channel in order
+            serviceChannel.write(new TextWebSocketFrame(ByteBufUtil.writeUtf8(serviceChannel.alloc(), json)));
+            ByteBuf frame = RelayFrame.encode(serviceChannel.alloc(), RelayFrame.OP_REQUEST_BODY,
+                RelayFrame.FLAG_FIN, wireId, content.retainedDuplicate());
+            serviceChannel.writeAndFlush(new BinaryWebSocketFrame(frame));
         } else {
-            requestManager.removePendingRequest(requestId);
-            sendServiceUnavailable(ctx, request);
+            serviceChannel.writeAndFlush(new TextWebSocketFrame(ByteBufUtil.writeUtf8(serviceChannel.alloc(), json)));
         }
     }
 
+    // Request headers that make a response specific to one client
+    private static final CharSequence[] UNSHARED_REQUEST_HEADERS = {
+        HttpHeaderNames.IF_NONE_MATCH, HttpHeaderNames.IF_MODIFIED_SINCE, HttpHeaderNames.IF_MATCH,
+        HttpHeaderNames.IF_UNMODIFIED_SINCE, HttpHeaderNames.IF_RANGE, HttpHeaderNames.RANGE,
+        HttpHeaderNames.AUTHORIZATION, HttpHeaderNames.PROXY_AUTHORIZATION, HttpHeaderNames.COOKIE
+    };
+
+    /**
+     * Key identifying GETs to a coalescing service that can share one relay:
+     * service, method, path and query, plus the service's vary headers.
+     * Returns null if the request must be relayed on its own, including
+     * conditional, Range and credentialed requests, whose answers are specific
+     * to the client that sent them.
+     */
+    private static String coalescingKey(ServiceManager.ServiceEntry service, FullHttpRequest request) {
+        ServiceRegistration registration = service.getRegistration();
+        if (!registration.isCoalesceGets() || request.method() != HttpMethod.GET
+                || request.content().isReadable()) {
+            return null;
+        }
+        for (CharSequence name : UNSHARED_REQUEST_HEADERS) {
+            if (request.headers().contains(name)) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder("relay ").append(service.getName())
+            .append(' ').append(request.method().name()).append(' ').append(request.uri());
+        if (registration.getCoalesceVary() != null) {
+            for (String name : registration.getCoalesceVary()) {
+                key.append('\n').append(name.toLowerCase()).append(": ");
+                for (String value : request.headers().getAll(name)) {
+                    key.append(value).append(',');
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Build the relay request header (method, path, query, headers) without the body.
+     */
+    static HttpRelayRequest buildRelayRequest(String requestId, HttpRequest request, String path) {
+        HttpRelayRequest relayRequest = new HttpRelayRequest();
+        relayRequest.setRequestId(requestId);
+        relayRequest.setMethod(request.method().name());
+        relayRequest.setPath(path);
+        relayRequest.setQuery(request.uri().contains("?") ? 
+            request.uri().substring(request.uri().indexOf("?") + 1) : "");
+
+        // Copy headers
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, String> entry : request.headers()) {
+            headers.put(entry.getKey(), entry.getValue());
+        }
+        relayRequest.setHeaders(headers);
+        return relayRequest;
+    }
+
     private boolean isBinaryContentType(String contentType) {
         return contentType.startsWith("application/octet-stream") ||
                contentType.startsWith("image/") ||
@@ -303,38 +460,84 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     /**
      * Send relay response to HTTP client.
      */
-    public static void sendRelayResponse(ChannelHandlerContext ctx, HttpRelayResponse response) {
-        HttpResponseStatus status = HttpResponseStatus.valueOf(response.getStatus());
-        
-        byte[] body;
+    public static void sendRelayResponse(ChannelHandlerContext ctx, HttpRequest request, HttpRelayResponse response) {
+        sendRelayResponse(ctx, request, response, decodeRelayBody(ctx.alloc(), response));
+    }
+
+    /**
+     * The body of a JSON relay response (text or base64) as a pooled buffer.
+     */
+    static ByteBuf decodeRelayBody(ByteBufAllocator alloc, HttpRelayResponse response) {
         if (response.getBodyBase64() != null) {
-            body = Base64.decode(response.getBodyBase64(), Base64.NO_WRAP);
+            return decodeBase64(alloc, response.getBodyBase64());
         } else if (response.getBody() != null) {
-            body = response.getBody().getBytes(StandardCharsets.UTF_8);
-        } else {
-            body = new byte[0];
+            return ByteBufUtil.writeUtf8(alloc, response.getBody());
         }
+        return Unpooled.EMPTY_BUFFER;
+    }
+
+    /**
+     * A read-only body that is never released, for text sent in many responses.
+     */
+    static ByteBuf constantBody(String text) {
+        return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(text, StandardCharsets.UTF_8).asReadOnly());
+    }
+
+    /**
+     * Decode base64 text into a pooled buffer, without an intermediate array.
+     */
+    static ByteBuf decodeBase64(ByteBufAllocator alloc, String base64) {
+        ByteBuf encoded = ByteBufUtil.writeAscii(alloc, base64);
+        try {
+            return Base64.decode(encoded, encoded.readerIndex(), encoded.readableBytes(),
+                Base64Dialect.STANDARD, alloc);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Base64 text of a buffer's readable bytes, which are left unread.
+     */
+    static String encodeBase64(ByteBuf data) {
+        ByteBuf encoded = Base64.encode(data, data.readerIndex(), data.readableBytes(),
+            false, Base64Dialect.STANDARD, data.alloc());
+        try {
+            return encoded.toString(StandardCharsets.US_ASCII);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Send relay response with a raw body (from a binary relay frame).
+     * Takes ownership of body.
+     */
+    public static void sendRelayResponse(ChannelHandlerContext ctx, HttpRequest request,
+                                         HttpRelayResponse response, ByteBuf body) {
+        HttpResponseStatus status = HttpResponseStatus.valueOf(response.getStatus());
 
         FullHttpResponse httpResponse = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             status,
-            Unpooled.wrappedBuffer(body)
+            body
         );
 
         // Add CORS headers using static method
         addStaticCorsHeaders(httpResponse);
 
-        // Copy headers
+        // Copy headers (Connection is hop-by-hop and decided by this server)
         if (response.getHeaders() != null) {
             for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
-                httpResponse.headers().set(entry.getKey(), entry.getValue());
+                if (!HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(entry.getKey())) {
+                    httpResponse.headers().set(entry.getKey(), entry.getValue());
+                }
             }
         }
 
-        httpResponse.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.length);
-        httpResponse.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        httpResponse.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
         
-        ctx.writeAndFlush(httpResponse).addListener(ChannelFutureListener.CLOSE);
+        writeResponse(ctx, request, httpResponse);
     }
 
     /**
@@ -361,11 +564,13 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             }
             
             // Service management page
-            String html = localServiceManager.getServicePageHtml(serviceName, serverUrl);
-            if (html == null) {
+            StaticContentCache.Entry page = staticContentCache.get("/" + serviceName + "/service",
+                "text/html; charset=UTF-8", "no-cache",
+                () -> localServiceManager.getServicePageHtml(serviceName, serverUrl));
+            if (page == null) {
                 sendNotFound(ctx, request);
             } else {
-                sendHtmlResponse(ctx, request, html);
+                StaticContentCache.serve(ctx, request, page);
             }
             return true;
         }
@@ -373,9 +578,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         // /main - Main service UI (serve directly when service is registered)
         if ("main".equals(subPath)) {
             // Serve the user client HTML directly from assets (regardless of service running state)
-            String html = localServiceManager.getServiceMainHtml(serviceName);
-            if (html != null) {
-                sendHtmlResponse(ctx, request, html);
+            StaticContentCache.Entry page = staticContentCache.get("/" + serviceName + "/main",
+                "text/html; charset=UTF-8", "no-cache", () -> localServiceManager.getServiceMainHtml(serviceName));
+            if (page != null) {
+                StaticContentCache.serve(ctx, request, page);
                 return true;
             }
             
@@ -430,10 +636,8 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             String uuid = null;
             ByteBuf content = request.content();
             if (content.readableBytes() > 0) {
-                byte[] bodyBytes = new byte[content.readableBytes()];
-                content.readBytes(bodyBytes);
                 try {
-                    JsonObject body = gson.fromJson(new String(bodyBytes, StandardCharsets.UTF_8), JsonObject.class);
+                    JsonObject body = gson.fromJson(content.toString(StandardCharsets.UTF_8), JsonObject.class);
                     if (body.has("uuid")) {
                         uuid = body.get("uuid").getAsString();
                     }
@@ -482,10 +686,8 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             String userId = null;
             ByteBuf content = request.content();
             if (content.readableBytes() > 0) {
-                byte[] bodyBytes = new byte[content.readableBytes()];
-                content.readBytes(bodyBytes);
                 try {
-                    JsonObject body = gson.fromJson(new String(bodyBytes, StandardCharsets.UTF_8), JsonObject.class);
+                    JsonObject body = gson.fromJson(content.toString(StandardCharsets.UTF_8), JsonObject.class);
                     if (body.has("userId")) {
                         userId = body.get("userId").getAsString();
                     }
@@ -561,6 +763,12 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             return;
         }
         
+        // /_api/blobs - Resumable uploads to the server
+        if ("blobs".equals(apiCategory) && blobStore != null) {
+            handleBlobsApi(ctx, request, pathParts);
+            return;
+        }
+        
         sendJsonResponse(ctx, request, "{\"error\": \"Unknown API category\"}");
     }
     
@@ -588,10 +796,20 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             if (pathParts.length == 4 && request.method() == HttpMethod.GET) {
                 seven.lab.wstun.marketplace.InstalledService service = 
                     localServiceManager != null ? localServiceManager.getInstalledService(serviceName) : null;
+                JsonObject relay = getRelayStats(serviceName);
                 if (service != null) {
                     JsonObject obj = service.toJson();
                     obj.addProperty("name", serviceName);
                     obj.addProperty("instanceCount", serviceManager.getInstanceCountForService(serviceName));
+                    if (relay != null) {
+                        obj.add("relay", relay);
+                    }
+                    sendJsonResponse(ctx, request, obj.toString());
+                } else if (relay != null) {
+                    // Registered over WebSocket without being installed
+                    JsonObject obj = new JsonObject();
+                    obj.addProperty("name", serviceName);
+                    obj.add("relay", relay);
                     sendJsonResponse(ctx, request, obj.toString());
                 } else {
                     sendJsonResponse(ctx, request, "{\"error\": \"Service not found\"}");
@@ -641,6 +859,26 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         sendJsonResponse(ctx, request, "{\"error\": \"Invalid services API path\"}");
     }
     
+    /**
+     * Relay state of a registered service: providers, requests in flight and, with
+     * admission control, queue depth and waiting times. Null if it is not registered.
+     */
+    private JsonObject getRelayStats(String serviceName) {
+        List<ServiceManager.ServiceEntry> providers = serviceManager.getProviders(serviceName);
+        if (providers.isEmpty()) {
+            return null;
+        }
+        AdmissionQueue queue = providers.get(0).getAdmissionQueue();
+        JsonObject stats = queue != null ? queue.getStats() : new JsonObject();
+        int inFlight = 0;
+        for (ServiceManager.ServiceEntry provider : providers) {
+            inFlight += provider.getOutstanding();
+        }
+        stats.addProperty("providers", providers.size());
+        stats.addProperty("inFlight", inFlight);
+        return stats;
+    }
+
     /**
      * Handle /_api/instances endpoints.
      */
@@ -648,8 +886,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         // GET /_api/instances - List all running instances
         if (pathParts.length == 3 && request.method() == HttpMethod.GET) {
             com.google.gson.JsonArray instancesArr = new com.google.gson.JsonArray();
-            for (ServiceManager.ServiceInstance instance : getAllInstances()) {
-                instancesArr.add(instance.toJson());
+            if (localServiceManager != null) {
+                for (String serviceName : localServiceManager.getInstalledServices().keySet()) {
+                    instancesArr.addAll(serviceManager.getInstanceList(serviceName));
+                }
             }
             JsonObject response = new JsonObject();
             response.add("instances", instancesArr);
@@ -660,12 +900,8 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         // GET /_api/instances/{service} - List instances for a service
         if (pathParts.length == 4 && request.method() == HttpMethod.GET) {
             String serviceName = pathParts[3];
-            com.google.gson.JsonArray instancesArr = new com.google.gson.JsonArray();
-            for (ServiceManager.ServiceInstance instance : serviceManager.getInstancesForService(serviceName)) {
-                instancesArr.add(instance.toJson());
-            }
             JsonObject response = new JsonObject();
-            response.add("instances", instancesArr);
+            response.add("instances", serviceManager.getInstanceList(serviceName));
             sendJsonResponse(ctx, request, response.toString());
             return;
         }
@@ -673,19 +909,6 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         sendJsonResponse(ctx, request, "{\"error\": \"Invalid instances API path\"}");
     }
     
-    /**
-     * Get all instances across all services.
-     */
-    private java.util.List<ServiceManager.ServiceInstance> getAllInstances() {
-        java.util.List<ServiceManager.ServiceInstance> all = new java.util.ArrayList<>();
-        if (localServiceManager != null) {
-            for (String serviceName : localServiceManager.getInstalledServices().keySet()) {
-                all.addAll(serviceManager.getInstancesForService(serviceName));
-            }
-        }
-        return all;
-    }
-    
     /**
      * Handle /_api/marketplace endpoints.
      */
@@ -808,16 +1031,86 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         sendJsonResponse(ctx, request, "{\"error\": \"Invalid marketplace API path\"}");
     }
     
+    /**
+     * Handle /_api/blobs endpoints (tus-style resumable uploads).
+     * PATCH requests carry the data and are handled by BlobUploadHandler
+     * before aggregation.
+     */
+    private void handleBlobsApi(ChannelHandlerContext ctx, FullHttpRequest request, String[] pathParts) {
+        // POST /_api/blobs - Create an upload
+        if (pathParts.length == 3 && request.method() == HttpMethod.POST) {
+            long length;
+            try {
+                length = Long.parseLong(request.headers().get(BlobUploadHandler.UPLOAD_LENGTH, ""));
+            } catch (NumberFormatException e) {
+                sendBlobError(ctx, request, HttpResponseStatus.BAD_REQUEST, "Upload-Length required");
+                return;
+            }
+            Map<String, String> metadata = BlobUploadHandler.parseMetadata(
+                request.headers().get(BlobUploadHandler.UPLOAD_METADATA));
+            BlobStore.Blob blob = blobStore.create(length, metadata.get("filename"), metadata.get("filetype"));
+            if (blob == null) {
+                sendBlobError(ctx, request, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Not enough space");
+                return;
+            }
+            FullHttpResponse response = BlobUploadHandler.newStatusResponse(HttpResponseStatus.CREATED, blob);
+            response.headers().set(HttpHeaderNames.LOCATION, "/_api/blobs/" + blob.getId());
+            sendResponse(ctx, request, response);
+            return;
+        }
+        
+        BlobStore.Blob blob = pathParts.length == 4 ? blobStore.get(pathParts[3]) : null;
+        if (blob == null) {
+            sendBlobError(ctx, request, HttpResponseStatus.NOT_FOUND, "Unknown upload");
+            return;
+        }
+        
+        // HEAD /_api/blobs/{id} - Upload progress
+        if (request.method() == HttpMethod.HEAD) {
+            FullHttpResponse response = BlobUploadHandler.newStatusResponse(HttpResponseStatus.OK, blob);
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+            sendResponse(ctx, request, response);
+            return;
+        }
+        
+        // GET /_api/blobs/{id} - Download a completed blob
+        if (request.method() == HttpMethod.GET) {
+            if (!blob.isComplete()) {
+                sendBlobError(ctx, request, HttpResponseStatus.CONFLICT, "Upload not complete");
+            } else if (!sendDiskFile(ctx, request, blobStore.getFile(blob), blob.getLength(),
+                    blobStore.getHeaders(blob), blob.getId())) {
+                sendNotFound(ctx, request);
+            }
+            return;
+        }
+        
+        // DELETE /_api/blobs/{id} - Cancel an upload or remove a blob
+        if (request.method() == HttpMethod.DELETE) {
+            blobStore.delete(blob.getId());
+            sendResponse(ctx, request, BlobUploadHandler.newStatusResponse(HttpResponseStatus.NO_CONTENT, null));
+            return;
+        }
+        
+        sendBlobError(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, "Method not allowed");
+    }
+    
+    private void sendBlobError(ChannelHandlerContext ctx, FullHttpRequest request,
+                               HttpResponseStatus status, String message) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, status, ByteBufUtil.writeUtf8(ctx.alloc(), message));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(BlobUploadHandler.TUS_RESUMABLE, BlobUploadHandler.TUS_VERSION);
+        sendResponse(ctx, request, response);
+    }
+    
     /**
      * Helper to get a string value from request JSON body.
      */
     private String getRequestBodyString(FullHttpRequest request, String key) {
         ByteBuf content = request.content();
         if (content.readableBytes() > 0) {
-            byte[] bodyBytes = new byte[content.readableBytes()];
-            content.getBytes(content.readerIndex(), bodyBytes);
             try {
-                JsonObject body = gson.fromJson(new String(bodyBytes, StandardCharsets.UTF_8), JsonObject.class);
+                JsonObject body = gson.fromJson(content.toString(StandardCharsets.UTF_8), JsonObject.class);
                 if (body.has(key) && !body.get(key).isJsonNull()) {
                     return body.get(key).getAsString();
                 }
@@ -832,15 +1125,14 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
      * Send JSON response.
      */
     private void sendJsonResponse(ChannelHandlerContext ctx, FullHttpRequest request, String json) {
-        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.OK,
-            Unpooled.wrappedBuffer(bytes)
+            ByteBufUtil.writeUtf8(ctx.alloc(), json)
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         
         sendResponse(ctx, request, response);
     }
@@ -919,30 +1211,17 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         sendHtmlResponse(ctx, request, html.toString());
     }
 
-    private void sendStaticResource(ChannelHandlerContext ctx, FullHttpRequest request, 
-                                    String content, String path) {
-        String contentType = "text/plain";
+    private static String staticContentType(String path) {
         if (path.endsWith(".html")) {
-            contentType = "text/html; charset=UTF-8";
+            return "text/html; charset=UTF-8";
         } else if (path.endsWith(".js")) {
-            contentType = "application/javascript";
+            return "application/javascript";
         } else if (path.endsWith(".css")) {
-            contentType = "text/css";
+            return "text/css";
         } else if (path.endsWith(".json")) {
-            contentType = "application/json";
+            return "application/json";
         }
-
-        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
-        FullHttpResponse response = new DefaultFullHttpResponse(
-            HttpVersion.HTTP_1_1,
-            HttpResponseStatus.OK,
-            Unpooled.wrappedBuffer(bytes)
-        );
-        
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
-        
-        sendResponse(ctx, request, response);
+        return "text/plain";
     }
 
     private void sendHtmlResponse(ChannelHandlerContext ctx, FullHttpRequest request, String html) {
@@ -950,15 +1229,14 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             sendNotFound(ctx, request);
             return;
         }
-        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.OK,
-            Unpooled.wrappedBuffer(bytes)
+            ByteBufUtil.writeUtf8(ctx.alloc(), html)
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         
         sendResponse(ctx, request, response);
     }
@@ -967,25 +1245,24 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.NOT_FOUND,
-            Unpooled.wrappedBuffer("Not Found".getBytes())
+            NOT_FOUND_BODY.duplicate()
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 9);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, NOT_FOUND_BODY.readableBytes());
         
         sendResponse(ctx, request, response);
     }
     
     private void sendUnauthorized(ChannelHandlerContext ctx, FullHttpRequest request, String message) {
-        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.UNAUTHORIZED,
-            Unpooled.wrappedBuffer(bytes)
+            ByteBufUtil.writeUtf8(ctx.alloc(), message)
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         response.headers().set(HttpHeaderNames.WWW_AUTHENTICATE, "Bearer realm=\"wstun\"");
         
         sendResponse(ctx, request, response);
@@ -996,6 +1273,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
      * Checks Authorization header or ?token query parameter.
      */
     private boolean validateServerAuth(FullHttpRequest request) {
+        return validateServerAuth(serverConfig, request);
+    }
+    
+    static boolean validateServerAuth(ServerConfig serverConfig, HttpRequest request) {
         if (serverConfig == null || !serverConfig.isAuthEnabled()) {
             return true;
         }
@@ -1035,25 +1316,14 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
      * Serve the libwstun.js library.
      */
     private void sendLibWstun(ChannelHandlerContext ctx, FullHttpRequest request) {
-        String js = localServiceManager != null ? localServiceManager.getLibWstunJs() : null;
+        StaticContentCache.Entry js = localServiceManager == null ? null
+            : staticContentCache.get("/libwstun.js", "application/javascript; charset=UTF-8",
+                "public, max-age=3600", localServiceManager::getLibWstunJs);
         if (js == null) {
             sendNotFound(ctx, request);
             return;
         }
-        
-        byte[] bytes = js.getBytes(StandardCharsets.UTF_8);
-        
-        FullHttpResponse response = new DefaultFullHttpResponse(
-            HttpVersion.HTTP_1_1,
-            HttpResponseStatus.OK,
-            Unpooled.wrappedBuffer(bytes)
-        );
-        
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/javascript; charset=UTF-8");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=3600");
-        
-        sendResponse(ctx, request, response);
+        StaticContentCache.serve(ctx, request, js);
     }
     
     /**
@@ -1086,9 +1356,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
                 String line;
                 while (ctx.channel().isActive() && (line = reader.readLine()) != null) {
                     // Send each log line as a chunk
-                    String chunk = line + "\n";
-                    ctx.writeAndFlush(new DefaultHttpContent(
-                        Unpooled.copiedBuffer(chunk, StandardCharsets.UTF_8)));
+                    ByteBuf chunk = ctx.alloc().buffer(line.length() + 1);
+                    ByteBufUtil.writeUtf8(chunk, line);
+                    chunk.writeByte('\n');
+                    ctx.writeAndFlush(new DefaultHttpContent(chunk));
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error streaming logcat", e);
@@ -1117,11 +1388,11 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.SERVICE_UNAVAILABLE,
-            Unpooled.wrappedBuffer("Service Unavailable".getBytes())
+            SERVICE_UNAVAILABLE_BODY.duplicate()
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 19);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, SERVICE_UNAVAILABLE_BODY.readableBytes());
         
         sendResponse(ctx, request, response);
     }
@@ -1131,11 +1402,11 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.INTERNAL_SERVER_ERROR,
-            Unpooled.wrappedBuffer(body.getBytes(StandardCharsets.UTF_8))
+            ByteBufUtil.writeUtf8(ctx.alloc(), body)
         );
         
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.getBytes(StandardCharsets.UTF_8).length);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         
         sendResponse(ctx, request, response);
     }
@@ -1144,29 +1415,36 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         // Add CORS headers to all responses
         addCorsHeaders(response);
         
+        writeResponse(ctx, request, response);
+    }
+
+    /**
+     * Write a complete response, keeping the connection open when the request allows it.
+     * Used for local and relayed responses alike. A null request, or a response that
+     * already says Connection: close, closes the connection after the write.
+     */
+    public static void writeResponse(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response) {
         // Ensure Content-Length is set - this is critical for keep-alive to work properly
         if (!response.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
             response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         }
         
-        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        boolean keepAlive = request != null && HttpUtil.isKeepAlive(request)
+            && !response.headers().contains(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE, true);
         
         if (keepAlive) {
             // For keep-alive, set the header and don't close
-            if (!response.headers().contains(HttpHeaderNames.CONNECTION)) {
-                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            }
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         } else {
             // For non-keep-alive, set Connection: close
             response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
         }
         
         // Write and flush the response
-        ctx.writeAndFlush(response).addListener(f -> {
-            if (!keepAlive) {
-                ctx.close();
-            }
-        });
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
     }
 
     /**
@@ -1174,18 +1452,20 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
      */
     private void addCorsHeaders(FullHttpResponse response) {
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, corsOrigins);
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization, X-Requested-With");
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS");
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, CORS_ALLOW_HEADERS);
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, CORS_EXPOSE_HEADERS);
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_MAX_AGE, "86400");
     }
 
     /**
      * Add CORS headers with static origin (for relay responses).
      */
-    private static void addStaticCorsHeaders(FullHttpResponse response) {
+    static void addStaticCorsHeaders(FullHttpResponse response) {
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, staticCorsOrigins);
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization, X-Requested-With");
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS");
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, CORS_ALLOW_HEADERS);
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, CORS_EXPOSE_HEADERS);
     }
 
     /**
@@ -1198,11 +1478,9 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             Unpooled.EMPTY_BUFFER
         );
         
-        addCorsHeaders(response);
         response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        sendResponse(ctx, request, response);
     }
 
     @Override
@@ -1217,6 +1495,13 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         super.channelInactive(ctx);
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Return held-back credit to a streaming producer once the client catches up
+        StreamFlowControl.onWritabilityChanged(ctx.channel());
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         Log.e(TAG, "HTTP handler error", cause);
@@ -1238,7 +1523,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     /**
      * Start a streaming HTTP response (send headers, prepare for chunks).
      */
-    public static void startStreamingResponse(ChannelHandlerContext ctx, String requestId, 
+    public static void startStreamingResponse(ChannelHandlerContext ctx, HttpRequest request, String requestId,
                                               int status, JsonObject headers) {
         HttpResponse response = new DefaultHttpResponse(
             HttpVersion.HTTP_1_1,
@@ -1247,74 +1532,106 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
         // Add CORS headers
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, staticCorsOrigins);
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-        
-        // Use chunked transfer encoding for streaming
-        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS");
         
         // Copy headers from payload
         if (headers != null) {
             for (String key : headers.keySet()) {
-                // Skip Content-Length as we're using chunked encoding
-                if (!key.equalsIgnoreCase("Content-Length")) {
+                if (!key.equalsIgnoreCase("Connection") && !key.equalsIgnoreCase("Transfer-Encoding")) {
                     response.headers().set(key, headers.get(key).getAsString());
                 }
             }
         }
+        
+        // Stream with a fixed length when the producer knows it (file downloads, ranges),
+        // otherwise use chunked transfer encoding
+        if (!response.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        }
+
+        // Either framing is self-delimiting, so the connection can be reused afterwards
+        response.headers().set(HttpHeaderNames.CONNECTION,
+            request != null && HttpUtil.isKeepAlive(request) ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
 
         // Flush the headers immediately so the client knows the response has started
         ctx.writeAndFlush(response);
-        streamingResponses.put(requestId, ctx);
         Log.d(TAG, "Started streaming response for: " + requestId);
     }
 
     /**
      * Send a chunk of streaming data.
      */
-    public static void sendStreamingChunk(ChannelHandlerContext ctx, String chunkBase64) {
+    public static ChannelFuture sendStreamingChunk(ChannelHandlerContext ctx, String chunkBase64) {
         if (ctx == null || !ctx.channel().isActive()) {
-            return;
+            return null;
+        }
+        
+        return sendStreamingChunk(ctx, decodeBase64(ctx.alloc(), chunkBase64));
+    }
+
+    /**
+     * Send a chunk of raw streaming data (from a binary relay frame).
+     * Takes ownership of data. Returns the write future, or null if the client is gone.
+     */
+    public static ChannelFuture sendStreamingChunk(ChannelHandlerContext ctx, ByteBuf data) {
+        if (ctx == null || !ctx.channel().isActive()) {
+            data.release();
+            return null;
         }
         
-        byte[] data = Base64.decode(chunkBase64, Base64.NO_WRAP);
-        ByteBuf buf = Unpooled.wrappedBuffer(data);
-        ctx.writeAndFlush(new io.netty.handler.codec.http.DefaultHttpContent(buf));
+        return ctx.writeAndFlush(new DefaultHttpContent(data));
     }
 
     /**
-     * End a streaming response.
+     * End a streaming response; the connection stays open if the request allows keep-alive.
      */
-    public static void endStreamingResponse(ChannelHandlerContext ctx) {
+    public static void endStreamingResponse(ChannelHandlerContext ctx, HttpRequest request) {
         if (ctx == null || !ctx.channel().isActive()) {
             return;
         }
         
-        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT)
-           .addListener(ChannelFutureListener.CLOSE);
+        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (request == null || !HttpUtil.isKeepAlive(request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
         Log.d(TAG, "Ended streaming response");
     }
 
     /**
-     * Send error and close streaming response.
+     * Send error for a streaming response.
      */
-    public static void sendStreamingError(ChannelHandlerContext ctx, String error) {
+    public static void sendStreamingError(ChannelHandlerContext ctx, HttpRequest request,
+                                          boolean headersSent, String error) {
+        sendErrorResponse(ctx, request, headersSent, HttpResponseStatus.INTERNAL_SERVER_ERROR, error);
+    }
+
+    /**
+     * Send an error for a relayed request, or abort the response if its headers were already sent.
+     */
+    public static void sendErrorResponse(ChannelHandlerContext ctx, HttpRequest request, boolean headersSent,
+                                         HttpResponseStatus status, String error) {
         if (ctx == null || !ctx.channel().isActive()) {
             return;
         }
         
+        // Headers already went out; a truncated body is the only way to signal failure
+        if (headersSent) {
+            Log.w(TAG, "Streaming response failed after headers: " + error);
+            ctx.close();
+            return;
+        }
+        
         // If headers not sent yet, send error response
-        byte[] errorBytes = error.getBytes(StandardCharsets.UTF_8);
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
-            HttpResponseStatus.INTERNAL_SERVER_ERROR,
-            Unpooled.wrappedBuffer(errorBytes)
+            status,
+            ByteBufUtil.writeUtf8(ctx.alloc(), error)
         );
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, errorBytes.length);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         addStaticCorsHeaders(response);
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        writeResponse(ctx, request, response);
     }
 
     /**
@@ -1324,13 +1641,13 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
                                          String fileId, ChannelHandlerContext httpCtx) {
         ServiceManager.FileInfo file = serviceManager.getFile(fileId);
         if (file == null) {
-            sendNotFoundResponse(httpCtx);
+            sendNotFoundResponse(httpCtx, null);
             return;
         }
 
         Channel ownerChannel = file.getOwnerChannel();
         if (ownerChannel == null || !ownerChannel.isActive()) {
-            sendServiceUnavailableResponse(httpCtx);
+            sendServiceUnavailableResponse(httpCtx, null);
             return;
         }
 
@@ -1345,30 +1662,28 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         Log.d(TAG, "Requested file stream from owner: " + fileId);
     }
 
-    private static void sendNotFoundResponse(ChannelHandlerContext ctx) {
+    private static void sendNotFoundResponse(ChannelHandlerContext ctx, HttpRequest request) {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.NOT_FOUND,
-            Unpooled.wrappedBuffer("File not found".getBytes())
+            FILE_NOT_FOUND_BODY.duplicate()
         );
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 14);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, FILE_NOT_FOUND_BODY.readableBytes());
         addStaticCorsHeaders(response);
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        writeResponse(ctx, request, response);
     }
 
-    private static void sendServiceUnavailableResponse(ChannelHandlerContext ctx) {
+    private static void sendServiceUnavailableResponse(ChannelHandlerContext ctx, HttpRequest request) {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.SERVICE_UNAVAILABLE,
-            Unpooled.wrappedBuffer("File owner not connected".getBytes())
+            OWNER_NOT_CONNECTED_BODY.duplicate()
         );
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 24);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, OWNER_NOT_CONNECTED_BODY.readableBytes());
         addStaticCorsHeaders(response);
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        writeResponse(ctx, request, response);
     }
     
     /**
@@ -1388,6 +1703,24 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         
         Log.d(TAG, "File download request: " + globalFileId);
         
+        // Served from the on-device cache without involving the owner
+        if (blobCache != null) {
+            BlobCache.Entry cached = blobCache.get(globalFileId);
+            if (cached != null && sendDiskFile(ctx, request, cached.getFile(), cached.getLength(),
+                    cached.getHeaders(), cached.getFileId())) {
+                return;
+            }
+        }
+        
+        // Uploaded to the server through /_api/blobs
+        if (blobStore != null) {
+            BlobStore.Blob blob = blobStore.get(globalFileId);
+            if (blob != null && blob.isComplete() && sendDiskFile(ctx, request, blobStore.getFile(blob),
+                    blob.getLength(), blobStore.getHeaders(blob), blob.getId())) {
+                return;
+            }
+        }
+        
         // Parse globalFileId to extract userId
         // Format: userId/localFileId
         String ownerId = null;
@@ -1410,7 +1743,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
                     return;
                 }
             }
-            sendNotFoundResponse(ctx);
+            sendNotFoundResponse(ctx, request);
             return;
         }
         
@@ -1418,7 +1751,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         ServiceManager.ClientInfo ownerClient = serviceManager.getClient(ownerId);
         if (ownerClient == null || ownerClient.getChannel() == null || !ownerClient.getChannel().isActive()) {
             Log.w(TAG, "File owner not connected: " + ownerId);
-            sendServiceUnavailableResponse(ctx);
+            sendServiceUnavailableResponse(ctx, request);
             return;
         }
         
@@ -1430,19 +1763,288 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
      */
     private void sendFileRequest(ChannelHandlerContext ctx, FullHttpRequest request, 
                                  Channel ownerChannel, String fileId) {
+        JsonArray ranges = parseRangeHeader(request.headers().get(HttpHeaderNames.RANGE));
+        
+        // Concurrent full downloads of one file share a single stream from the owner
+        if (ranges == null && requestManager.joinDownload(DownloadGroup.fileKey(fileId), ctx, request)) {
+            Log.d(TAG, "Joined shared download: " + fileId);
+            return;
+        }
+        
+        if (startSwarmDownload(ctx, request, fileId, ranges)) {
+            return;
+        }
+        
         // Create pending request for streaming response
-        String requestId = String.valueOf(System.currentTimeMillis()) + "-" + (int)(Math.random() * 10000);
-        PendingRequest pending = new PendingRequest(requestId, ctx, request, "fileshare");
+        PendingRequest pending = new PendingRequest(requestManager.nextRequestId(), ctx, request, "fileshare");
+        pending.setProducer(ownerChannel);
+        if (ranges == null) {
+            DownloadGroup group = new DownloadGroup(fileId, pending.getWireId(), requestManager, blobCache, ctx, request);
+            pending.setSink(group);
+            requestManager.addDownloadGroup(group);
+        }
         requestManager.addPendingRequest(pending);
         
         // Send file_request to owner
         Message message = new Message(Message.TYPE_FILE_REQUEST);
         JsonObject payload = new JsonObject();
-        payload.addProperty("requestId", requestId);
+        payload.addProperty("requestId", pending.getWireId());
         payload.addProperty("fileId", fileId);
+        
+        // Byte ranges are resolved by the owner, which knows the file size and validators
+        if (ranges != null) {
+            payload.add("ranges", ranges);
+            String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+            if (ifRange != null) {
+                payload.addProperty("if_range", ifRange);
+            }
+        }
         message.setPayload(payload);
         
         ownerChannel.writeAndFlush(new TextWebSocketFrame(message.toJson()));
         Log.d(TAG, "Sent file request to owner: " + fileId);
     }
+    
+    /**
+     * Fetch a file in segments from every connected owner of identical content.
+     * Only used for the whole file (of at least two segments), whose hash can be
+     * checked, and not for conditional (If-Range) requests, whose validators are
+     * per owner. Returns false to fall back to a single-owner download.
+     */
+    private boolean startSwarmDownload(ChannelHandlerContext ctx, FullHttpRequest request,
+                                       String fileId, JsonArray ranges) {
+        List<ServiceManager.FileInfo> sources = serviceManager.getFileSources(fileId);
+        if (sources.size() < 2 || request.headers().contains(HttpHeaderNames.IF_RANGE)) {
+            return false;
+        }
+        long size = sources.get(0).getSize();
+        long start = 0;
+        long end = size - 1;
+        if (ranges != null) {
+            if (ranges.size() != 1) {
+                return false;
+            }
+            long[] bounds = resolveRange(ranges.get(0).getAsJsonObject(), size);
+            if (bounds == null) {
+                return false;
+            }
+            start = bounds[0];
+            end = bounds[1];
+        }
+        if (end - start + 1 < 2 * SwarmDownload.SEGMENT_SIZE
+                || !SwarmDownload.canVerify(sources.get(0).getContentHash(), size, start, end)) {
+            return false;
+        }
+        
+        Log.d(TAG, "Swarm download of " + fileId + " from " + sources.size() + " sources");
+        new SwarmDownload(ctx, request, requestManager, serviceManager, sources, size, start, end,
+            ranges != null).start();
+        return true;
+    }
+    
+    /**
+     * Send a file stored on the device (relay cache or uploaded blob). Single byte
+     * ranges are honoured; multiple ranges get the whole file. Over plain HTTP/1.1
+     * the file is sent with a zero-copy FileRegion, otherwise it is read in chunks
+     * through the ChunkedWriteHandler. Returns false if the file could not be opened.
+     */
+    private boolean sendDiskFile(ChannelHandlerContext ctx, FullHttpRequest request, File diskFile,
+                                 long length, JsonObject headers, String fileId) {
+        
+        long start = 0;
+        long count = length;
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        JsonArray ranges = parseRangeHeader(request.headers().get(HttpHeaderNames.RANGE));
+        if (ranges != null && ranges.size() == 1 && ifRangeMatches(request, headers)) {
+            long[] bounds = resolveRange(ranges.get(0).getAsJsonObject(), length);
+            if (bounds == null) {
+                FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE
+                );
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                sendResponse(ctx, request, response);
+                return true;
+            }
+            start = bounds[0];
+            count = bounds[1] - bounds[0] + 1;
+            status = HttpResponseStatus.PARTIAL_CONTENT;
+        }
+        
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(diskFile, "r");
+        } catch (IOException e) {
+            Log.w(TAG, "Stored file unavailable: " + fileId);
+            return false;
+        }
+        
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        if (headers != null) {
+            for (String key : headers.keySet()) {
+                if (!key.equalsIgnoreCase("Content-Length") && !key.equalsIgnoreCase("Connection")
+                        && !key.equalsIgnoreCase("Transfer-Encoding")) {
+                    response.headers().set(key, headers.get(key).getAsString());
+                }
+            }
+        }
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, corsOrigins);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, count);
+        if (status == HttpResponseStatus.PARTIAL_CONTENT) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE,
+                "bytes " + start + "-" + (start + count - 1) + "/" + length);
+        }
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        response.headers().set(HttpHeaderNames.CONNECTION,
+            keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        
+        // HEAD gets the head only; a body would be read as the next response on a kept-alive connection
+        if (request.method() == HttpMethod.HEAD) {
+            closeQuietly(file);
+            ctx.write(response);
+            ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+            return true;
+        }
+        
+        // Zero-copy needs the socket itself: no TLS, and not an HTTP/2 or HTTP/3 stream
+        boolean zeroCopy = !ssl && ctx.channel() instanceof SocketChannel;
+        if (zeroCopy) {
+            // A FileRegion bypasses the compressor, so the head must not announce an encoding
+            HttpCompressor.skipNextResponse(ctx.pipeline());
+        }
+        ctx.write(response);
+        ChannelFuture future;
+        if (!zeroCopy) {
+            try {
+                future = ctx.writeAndFlush(new HttpChunkedInput(
+                    new ChunkedNioFile(file.getChannel(), start, count, 64 * 1024)));
+            } catch (IOException e) {
+                // Headers are already queued; the response cannot be completed
+                Log.w(TAG, "Failed to read stored file: " + fileId);
+                closeQuietly(file);
+                ctx.close();
+                return true;
+            }
+        } else {
+            ctx.write(new DefaultFileRegion(file.getChannel(), start, count));
+            future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        Log.d(TAG, "Served stored file: " + fileId);
+        return true;
+    }
+    
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+    
+    /**
+     * Check an If-Range validator against the cached ETag / Last-Modified.
+     * Returns true when there is no If-Range header.
+     */
+    private static boolean ifRangeMatches(HttpRequest request, JsonObject headers) {
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (headers == null) {
+            return false;
+        }
+        for (String key : headers.keySet()) {
+            if ((key.equalsIgnoreCase("ETag") || key.equalsIgnoreCase("Last-Modified"))
+                    && ifRange.equals(headers.get(key).getAsString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Resolve one parsed range against a file size into inclusive [start, end],
+     * or null if it is not satisfiable.
+     */
+    static long[] resolveRange(JsonObject range, long size) {
+        long start;
+        long end = size - 1;
+        if (range.has("suffix")) {
+            long suffix = range.get("suffix").getAsLong();
+            if (suffix <= 0) {
+                return null;
+            }
+            start = Math.max(0, size - suffix);
+        } else {
+            start = range.get("offset").getAsLong();
+            if (range.has("length")) {
+                end = Math.min(start + range.get("length").getAsLong() - 1, size - 1);
+            }
+        }
+        if (start >= size || start > end) {
+            return null;
+        }
+        return new long[] { start, end };
+    }
+    
+    /**
+     * Parse a "bytes=" Range header into [{offset, length}] entries for the file owner.
+     * An open-ended range ("500-") has no length and a suffix range ("-500") is sent
+     * as {suffix}. Returns null when the header is absent, malformed or has too many
+     * ranges, in which case the whole file is served (RFC 9110 section 14.2).
+     */
+    static JsonArray parseRangeHeader(String header) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        
+        JsonArray ranges = new JsonArray();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                
+                JsonObject range = new JsonObject();
+                if (first.isEmpty()) {
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    range.addProperty("suffix", suffix);
+                } else {
+                    long offset = Long.parseLong(first);
+                    range.addProperty("offset", offset);
+                    if (!last.isEmpty()) {
+                        long end = Long.parseLong(last);
+                        if (end < offset) {
+                            return null;
+                        }
+                        range.addProperty("length", end - offset + 1);
+                    }
+                }
+                ranges.add(range);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
 }
@@ -40,6 +40,7 @@ public class LocalServiceManager {
     
     // HTML/JS content cache
     private String libwstunJs;
+    private final StaticContentCache staticContentCache = new StaticContentCache();
     
     /**
      * Represents the status of a local service.
@@ -91,6 +92,7 @@ public class LocalServiceManager {
         this.context = context;
         this.config = config;
         this.marketplaceService = new MarketplaceService(context);
+        this.marketplaceService.setChangeListener(staticContentCache::invalidateService);
         
         // Initialize service statuses for all installed services
         for (String name : marketplaceService.getInstalledServices().keySet()) {
@@ -366,6 +368,13 @@ public class LocalServiceManager {
         return service.getManifest().getEndpoints();
     }
     
+    /**
+     * Get the cache of encoded pages, libwstun.js and registered static resources.
+     */
+    public StaticContentCache getStaticContentCache() {
+        return staticContentCache;
+    }
+    
     /**
      * Get the libwstun.js library content.
      */
@@ -426,6 +435,7 @@ public class LocalServiceManager {
      * Shutdown resources.
      */
     public void shutdown() {
+        staticContentCache.clear();
         if (marketplaceService != null) {
             marketplaceService.shutdown();
         }
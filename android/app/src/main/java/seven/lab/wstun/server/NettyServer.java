@@ -4,22 +4,39 @@ import android.content.Context;
 import android.os.PowerManager;
 import android.util.Log;
 
+import java.io.File;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -35,15 +52,34 @@ public class NettyServer {
     
     private static final String TAG = "NettyServer";
 
+    // HTTP/2: concurrent requests per connection, and receive window per stream
+    private static final int MAX_CONCURRENT_STREAMS = 128;
+    private static final int STREAM_WINDOW_BYTES = 1024 * 1024;
+    private static final int WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Pooled direct buffers for every channel, with one arena per worker thread.
+     * Set explicitly since Netty's default prefers heap buffers on Android, and
+     * thread caches are kept only for event loops (useCacheForAllThreads off) so
+     * helper threads do not pin pool memory. Chunks are 4 MB (8 KB pages, order 9).
+     */
+    static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(
+        true, WORKER_THREADS, WORKER_THREADS, 8192, 9, 256, 64, false);
+
     private final Context context;
     private final ServerConfig config;
     private final ServiceManager serviceManager;
     private final RequestManager requestManager;
     private final LocalServiceManager localServiceManager;
+    private BlobCache blobCache;
+    private BlobStore blobStore;
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
     private Channel serverChannel;
+    private Channel http3Channel;
+    // Advertises HTTP/3 on TCP responses while http3Channel is bound
+    private volatile AltSvcHandler altSvcHandler;
     private boolean running = false;
     private PowerManager.WakeLock wakeLock;
 
@@ -56,6 +92,7 @@ public class NettyServer {
         
         // Link ServiceManager to RequestManager for cleanup on disconnect
         this.serviceManager.setRequestManager(this.requestManager);
+        this.serviceManager.setStaticContentCache(this.localServiceManager.getStaticContentCache());
     }
 
     /**
@@ -85,17 +122,36 @@ public class NettyServer {
 
         int port = config.getPort();
         boolean ssl = config.isHttpsEnabled();
+        final boolean http2 = config.isHttp2Enabled();
 
         // Get SSL context if needed
         SslContext sslContext = null;
         if (ssl) {
-            sslContext = SslContextFactory.getSslContext(context);
+            sslContext = SslContextFactory.getSslContext(context, http2);
         }
         final SslContext finalSslContext = sslContext;
         final String corsOrigins = config.getCorsOrigins();
         final int serverPort = port;
         final LocalServiceManager localSvcMgr = localServiceManager;
         final ServerConfig serverConfig = config;
+        final boolean compression = config.isCompressionEnabled();
+        final int compressionMinBytes = config.getCompressionMinBytes();
+        final String compressionTypes = config.getCompressionTypes();
+        
+        // Optional on-device cache of relayed downloads, under the app's files dir
+        blobCache = config.isRelayCacheEnabled() ?
+            new BlobCache(new File(context.getFilesDir(), "relay-cache"), config.getRelayCacheSizeMb() * 1024L * 1024L) :
+            null;
+        final BlobCache cache = blobCache;
+        serviceManager.setBlobCache(blobCache);
+        
+        // In-memory cache of service responses marked cacheable
+        requestManager.setResponseCache(config.getResponseCacheSizeMb() > 0 ?
+            new ResponseCache(config.getResponseCacheSizeMb() * 1024L * 1024L) : null);
+        
+        // Files uploaded to the server through /_api/blobs
+        blobStore = new BlobStore(new File(context.getFilesDir(), "blobs"), serviceManager);
+        final BlobStore store = blobStore;
 
         // Use custom thread factory to create high-priority daemon threads
         // This ensures Netty threads keep running even when app is backgrounded
@@ -104,46 +160,162 @@ public class NettyServer {
         
         bossGroup = new NioEventLoopGroup(1, bossThreadFactory);
         // Use more worker threads to handle concurrent HTTP and WebSocket connections
-        workerGroup = new NioEventLoopGroup(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), workerThreadFactory);
+        workerGroup = new NioEventLoopGroup(WORKER_THREADS, workerThreadFactory);
+
+        // Sets up each TCP connection, and each HTTP/3 stream through addHttpHandlers
+        class HttpInitializer extends ChannelInitializer<SocketChannel> {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                Log.d(TAG, "New connection from: " + ch.remoteAddress());
+                ChannelPipeline pipeline = ch.pipeline();
+
+                // SSL handler, then h2 or HTTP/1.1 as agreed through ALPN
+                if (finalSslContext != null) {
+                    pipeline.addLast("ssl", finalSslContext.newHandler(ch.alloc()));
+                    pipeline.addLast("protocol",
+                        new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                            @Override
+                            protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                                configureProtocol(ctx.pipeline(), protocol);
+                            }
+                        });
+                } else if (http2) {
+                    // h2c with prior knowledge, otherwise HTTP/1.1
+                    pipeline.addLast("protocol", new CleartextProtocolDetector() {
+                        @Override
+                        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                            configureProtocol(ctx.pipeline(), protocol);
+                        }
+                    });
+                } else {
+                    configureProtocol(pipeline, ApplicationProtocolNames.HTTP_1_1);
+                }
+            }
+
+            private void configureProtocol(ChannelPipeline pipeline, String protocol) {
+                if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                    pipeline.addLast("http-codec", new HttpServerCodec());
+                    addAltSvc(pipeline);
+                    addHttpHandlers(pipeline, true);
+                    return;
+                }
+                Log.d(TAG, "HTTP/2 connection from: " + pipeline.channel().remoteAddress());
+                pipeline.addLast("h2-codec", Http2FrameCodecBuilder.forServer()
+                    .initialSettings(Http2Settings.defaultSettings()
+                        .maxConcurrentStreams(MAX_CONCURRENT_STREAMS)
+                        .initialWindowSize(STREAM_WINDOW_BYTES))
+                    .build());
+                // Each stream is a child channel carrying one request as HTTP/1.1 objects
+                pipeline.addLast("h2-multiplex", new Http2MultiplexHandler(
+                    new ChannelInitializer<Http2StreamChannel>() {
+                        @Override
+                        protected void initChannel(Http2StreamChannel stream) {
+                            stream.pipeline().addLast("http-codec", new Http2StreamFrameToHttpObjectCodec(true));
+                            addAltSvc(stream.pipeline());
+                            addHttpHandlers(stream.pipeline(), false);
+                        }
+                    }));
+            }
+
+            private void addAltSvc(ChannelPipeline pipeline) {
+                AltSvcHandler altSvc = altSvcHandler;
+                if (altSvc != null) {
+                    pipeline.addLast("alt-svc", altSvc);
+                }
+            }
+
+            /**
+             * Everything after the HTTP codec, for HTTP/1.1 connections and HTTP/2 and HTTP/3
+             * streams alike. WebSocket upgrades only happen over HTTP/1.1.
+             */
+            private void addHttpHandlers(ChannelPipeline pipeline, boolean webSocket) {
+                // Compress responses; removed by the WebSocket handshake
+                if (compression) {
+                    pipeline.addLast("http-compressor", new HttpCompressor(compressionMinBytes, compressionTypes));
+                }
+
+                // Idle state handler - longer timeouts for better stability
+                // Read idle: 120s, Write idle: 60s, All idle: 0 (disabled)
+                // Placed before the relay streamer so streamed uploads count as activity
+                pipeline.addLast("idle", new IdleStateHandler(120, 60, 0));
+            
+                // Stream request bodies to services that opted in, bypassing the aggregator
+                pipeline.addLast("relay-stream", 
+                    new StreamingRelayHandler(serviceManager, requestManager, localSvcMgr, serverConfig));
+            
+                // Write resumable uploads to disk as they arrive, bypassing the aggregator
+                pipeline.addLast("blob-upload", new BlobUploadHandler(store, serverConfig));
+            
+                // Aggregate HTTP message parts into FullHttpRequest
+                pipeline.addLast("http-aggregator", new HttpObjectAggregator(65536));
+
+                // Writes cached downloads from disk when zero-copy is not possible (TLS)
+                pipeline.addLast("chunked-writer", new ChunkedWriteHandler());
+
+                // Negotiate permessage-deflate on WebSocket upgrades
+                if (compression && webSocket) {
+                    pipeline.addLast("ws-compression", newWebSocketCompressionHandler(compressionMinBytes));
+                }
+
+                // HTTP/WebSocket handler with CORS configuration and local service support
+                pipeline.addLast("http-handler", 
+                    new HttpHandler(serviceManager, requestManager, localSvcMgr, ssl, corsOrigins, serverPort,
+                        serverConfig, cache, store));
+            }
+        }
+        final HttpInitializer initializer = new HttpInitializer();
+
+        // Experimental QUIC listener on the same port, bound first so Alt-Svc is only sent once it is up
+        if (ssl && config.isHttp3Enabled() && Http3Listener.isAvailable()) {
+            try {
+                http3Channel = Http3Listener.bind(context, workerGroup, ALLOCATOR, port,
+                    pipeline -> initializer.addHttpHandlers(pipeline, false));
+                altSvcHandler = new AltSvcHandler(port, Http3Listener.ALT_SVC_MAX_AGE);
+            } catch (Exception e) {
+                Log.w(TAG, "HTTP/3 listener failed to start: " + e.getMessage());
+            }
+        }
 
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workerGroup)
             .channel(NioServerSocketChannel.class)
             .option(ChannelOption.SO_BACKLOG, 1024)
             .option(ChannelOption.SO_REUSEADDR, true)
+            .option(ChannelOption.ALLOCATOR, ALLOCATOR)
+            .childOption(ChannelOption.ALLOCATOR, ALLOCATOR)
             .childOption(ChannelOption.SO_KEEPALIVE, true)
             .childOption(ChannelOption.TCP_NODELAY, true)
-            .childHandler(new ChannelInitializer<SocketChannel>() {
-                @Override
-                protected void initChannel(SocketChannel ch) throws Exception {
-                    Log.d(TAG, "New connection from: " + ch.remoteAddress());
-                    ChannelPipeline pipeline = ch.pipeline();
-
-                    // SSL handler
-                    if (finalSslContext != null) {
-                        pipeline.addLast("ssl", finalSslContext.newHandler(ch.alloc()));
-                    }
-
-                    // HTTP codec
-                    pipeline.addLast("http-codec", new HttpServerCodec());
-                    
-                    // Aggregate HTTP message parts into FullHttpRequest
-                    pipeline.addLast("http-aggregator", new HttpObjectAggregator(65536));
-
-                    // Idle state handler - longer timeouts for better stability
-                    // Read idle: 120s, Write idle: 60s, All idle: 0 (disabled)
-                    pipeline.addLast("idle", new IdleStateHandler(120, 60, 0));
-
-                    // HTTP/WebSocket handler with CORS configuration and local service support
-                    pipeline.addLast("http-handler", 
-                        new HttpHandler(serviceManager, requestManager, localSvcMgr, ssl, corsOrigins, serverPort, serverConfig));
-                }
-            });
+            // Writability drives credit for streamed downloads (see StreamFlowControl)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(256 * 1024, 1024 * 1024))
+            .childHandler(initializer);
 
         serverChannel = bootstrap.bind(port).sync().channel();
         running = true;
 
-        Log.i(TAG, "Server started on port " + port + (ssl ? " (HTTPS)" : " (HTTP)"));
+        Log.i(TAG, "Server started on port " + port + (ssl ? " (HTTPS)" : " (HTTP)")
+            + (http2 ? " with HTTP/2" : "") + (http3Channel != null ? " and HTTP/3" : ""));
+    }
+
+    /**
+     * permessage-deflate for WebSocket connections. Text messages shorter than
+     * minBytes and binary frames (relayed bodies, usually media) are sent as they are.
+     */
+    private static WebSocketServerExtensionHandler newWebSocketCompressionHandler(int minBytes) {
+        WebSocketExtensionFilter skip = frame -> frame instanceof BinaryWebSocketFrame
+            || (frame instanceof TextWebSocketFrame && frame.content().readableBytes() < minBytes);
+        WebSocketExtensionFilterProvider filters = new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return skip;
+            }
+
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+        return new WebSocketServerExtensionHandler(new PerMessageDeflateServerExtensionHandshaker(
+            6, false, PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE, false, false, filters));
     }
 
     /**
@@ -161,6 +333,22 @@ public class NettyServer {
 
         // Shutdown request manager
         requestManager.shutdown();
+        
+        if (blobStore != null) {
+            blobStore.shutdown();
+            blobStore = null;
+        }
+        if (blobCache != null) {
+            serviceManager.setBlobCache(null);
+            blobCache.shutdown();
+            blobCache = null;
+        }
+
+        altSvcHandler = null;
+        if (http3Channel != null) {
+            http3Channel.close().awaitUninterruptibly(5, TimeUnit.SECONDS);
+            http3Channel = null;
+        }
 
         // Close server channel
         if (serverChannel != null) {
@@ -1,31 +1,55 @@
 package seven.lab.wstun.server;
 
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.Timeout;
+import seven.lab.wstun.protocol.HttpRelayResponse;
 
 /**
  * Represents a pending HTTP request waiting for response from a service client.
  */
 public class PendingRequest {
     
-    private final String requestId;
+    private final long requestId;
     private final ChannelHandlerContext ctx;
     private final HttpRequest request;
     private final String serviceName;
     private final long timestamp;
+    private volatile long lastActivity;                // System.nanoTime() of the last upload or response progress
+    private long firstByteTimeoutNanos;
+    private long idleTimeoutNanos;
+    private volatile Timeout timeout;
+    private volatile Channel producer;                 // Service or file owner answering the request
+    private ServiceManager.ServiceEntry provider;      // Service provider counting this request as outstanding
+    private volatile String replayMessage;             // http_request to resend if the provider leaves first
+    private volatile ChannelFutureListener closeListener;
+    private volatile HttpRelayResponse relayResponse;  // Headers waiting for a binary body frame
+    private volatile boolean responseStarted;          // Streamed response headers already sent
+    private volatile ResponseSink sink;                // Set when the response is not written to ctx directly
+    private volatile StreamFlowControl.Stream flowStream;  // Credit state while a streamed response runs
 
-    public PendingRequest(String requestId, ChannelHandlerContext ctx, HttpRequest request, String serviceName) {
+    public PendingRequest(long requestId, ChannelHandlerContext ctx, HttpRequest request, String serviceName) {
         this.requestId = requestId;
         this.ctx = ctx;
         this.request = request;
         this.serviceName = serviceName;
         this.timestamp = System.currentTimeMillis();
+        this.lastActivity = System.nanoTime();
     }
 
-    public String getRequestId() {
+    public long getRequestId() {
         return requestId;
     }
 
+    /**
+     * The id as sent to services in relay messages and frames.
+     */
+    public String getWireId() {
+        return String.valueOf(requestId);
+    }
+
     public ChannelHandlerContext getCtx() {
         return ctx;
     }
@@ -42,7 +66,119 @@ public class PendingRequest {
         return timestamp;
     }
 
-    public boolean isTimedOut(long timeoutMs) {
-        return System.currentTimeMillis() - timestamp > timeoutMs;
+    public HttpRelayResponse getRelayResponse() {
+        return relayResponse;
+    }
+
+    public void setRelayResponse(HttpRelayResponse relayResponse) {
+        this.relayResponse = relayResponse;
+    }
+
+    public boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    public void setResponseStarted(boolean responseStarted) {
+        this.responseStarted = responseStarted;
+    }
+
+    public Channel getProducer() {
+        return producer;
+    }
+
+    public void setProducer(Channel producer) {
+        this.producer = producer;
+    }
+
+    /**
+     * Assign the request to a service provider, which counts it as outstanding
+     * until it is removed from the RequestManager.
+     */
+    public synchronized void setProvider(ServiceManager.ServiceEntry provider) {
+        releaseProvider();
+        provider.addOutstanding(1);
+        this.provider = provider;
+        this.producer = provider.getChannel();
+    }
+
+    synchronized void releaseProvider() {
+        if (provider != null) {
+            provider.addOutstanding(-1);
+            provider = null;
+        }
+    }
+
+    public String getReplayMessage() {
+        return replayMessage;
+    }
+
+    /**
+     * Mark the request as safe to send again to another provider of a pooled service.
+     */
+    public void setReplayMessage(String replayMessage) {
+        this.replayMessage = replayMessage;
+    }
+
+    public ResponseSink getSink() {
+        return sink;
+    }
+
+    public void setSink(ResponseSink sink) {
+        this.sink = sink;
+    }
+
+    StreamFlowControl.Stream getFlowStream() {
+        return flowStream;
+    }
+
+    void setFlowStream(StreamFlowControl.Stream flowStream) {
+        this.flowStream = flowStream;
+    }
+
+    /**
+     * Record progress, pushing the deadline out.
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    void setTimeouts(long firstByteTimeoutMs, long idleTimeoutMs) {
+        this.firstByteTimeoutNanos = firstByteTimeoutMs * 1000000L;
+        this.idleTimeoutNanos = idleTimeoutMs * 1000000L;
+    }
+
+    /**
+     * When the request times out, in System.nanoTime() terms: the first-byte timeout
+     * applies until the response has started, the idle timeout after that.
+     */
+    long getDeadline() {
+        return lastActivity + (responseStarted ? idleTimeoutNanos : firstByteTimeoutNanos);
+    }
+
+    void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    void cancelTimeout() {
+        Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Run listener when the HTTP client's connection closes.
+     */
+    void watchClient(ChannelFutureListener listener) {
+        closeListener = listener;
+        ctx.channel().closeFuture().addListener(listener);
+    }
+
+    void unwatchClient() {
+        ChannelFutureListener listener = closeListener;
+        if (listener != null) {
+            closeListener = null;
+            ctx.channel().closeFuture().removeListener(listener);
+        }
     }
 }
@@ -5,124 +5,313 @@ import android.util.Log;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import seven.lab.wstun.protocol.Message;
 
 /**
  * Manages pending HTTP requests that are being relayed to service clients.
+ *
+ * Each request has its own timeout on a hashed timing wheel. A request fails if
+ * no response has started within the first-byte timeout, or if a started
+ * response makes no progress within the idle timeout; upload and response
+ * activity both push the deadline out. Timeouts are not moved on every chunk:
+ * when one fires early it is simply rescheduled for the remaining time.
+ *
+ * When a request is dropped before its response is complete (the HTTP client
+ * disconnected, or it timed out), the producer is sent an http_cancel so it stops
+ * generating the response.
  */
 public class RequestManager {
     
     private static final String TAG = "RequestManager";
-    private static final long REQUEST_TIMEOUT_MS = 10000; // 10 seconds - shorter timeout for better responsiveness
+    // Defaults for services that do not set their own timeouts
+    public static final long DEFAULT_FIRST_BYTE_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
 
-    private final Map<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler;
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    // File id -> shared download still accepting late joiners
+    private final Map<String, DownloadGroup> downloadGroups = new ConcurrentHashMap<>();
+    // Cached service responses; null when disabled
+    private volatile ResponseCache responseCache;
+    private final HashedWheelTimer timer;
+    // Random start so ids from before a restart do not match new requests
+    private final AtomicLong nextRequestId = new AtomicLong(ThreadLocalRandom.current().nextInt() & 0x7fffffff);
 
     public RequestManager() {
-        scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(this::cleanupTimedOutRequests, 5, 5, TimeUnit.SECONDS);
+        timer = new HashedWheelTimer(new DefaultThreadFactory("wstun-timeouts", true),
+            100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Allocate an id for a new relayed request.
+     */
+    public long nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    /**
+     * Parse a request id received from a service; -1 if it is not one of ours.
+     */
+    public static long parseRequestId(String requestId) {
+        if (requestId == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(requestId);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Run a task after a delay on the shared timeout timer.
+     */
+    public Timeout newTimeout(TimerTask task, long delayMs) {
+        return timer.newTimeout(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
     }
 
     /**
-     * Register a pending request.
+     * Register a pending request with the default timeouts.
      */
     public void addPendingRequest(PendingRequest request) {
+        addPendingRequest(request, 0, 0);
+    }
+
+    /**
+     * Register a pending request. Timeouts of 0 or less use the defaults.
+     */
+    public void addPendingRequest(PendingRequest request, long firstByteTimeoutMs, long idleTimeoutMs) {
+        request.setTimeouts(
+            firstByteTimeoutMs > 0 ? firstByteTimeoutMs : DEFAULT_FIRST_BYTE_TIMEOUT_MS,
+            idleTimeoutMs > 0 ? idleTimeoutMs : DEFAULT_IDLE_TIMEOUT_MS);
         pendingRequests.put(request.getRequestId(), request);
+        scheduleTimeout(request, request.getDeadline() - System.nanoTime());
+        // Shared downloads outlive any one client; their sink cancels them when the last one leaves
+        if (request.getSink() == null) {
+            request.watchClient(f -> cancelRequest(request));
+        }
         Log.d(TAG, "Added pending request: " + request.getRequestId());
     }
 
     /**
      * Get and remove a pending request.
      */
-    public PendingRequest removePendingRequest(String requestId) {
+    public PendingRequest removePendingRequest(long requestId) {
         PendingRequest request = pendingRequests.remove(requestId);
         if (request != null) {
+            detach(request);
             Log.d(TAG, "Removed pending request: " + requestId);
         }
         return request;
     }
 
+    public PendingRequest removePendingRequest(String requestId) {
+        return removePendingRequest(parseRequestId(requestId));
+    }
+
     /**
      * Get a pending request without removing it.
      */
-    public PendingRequest getPendingRequest(String requestId) {
+    public PendingRequest getPendingRequest(long requestId) {
         return pendingRequests.get(requestId);
     }
 
+    public PendingRequest getPendingRequest(String requestId) {
+        return getPendingRequest(parseRequestId(requestId));
+    }
+
+    /**
+     * Get a pending request answered by producer. Null when the id is unknown
+     * or belongs to another channel, so one client cannot answer another's request.
+     */
+    public PendingRequest getPendingRequest(String requestId, Channel producer) {
+        PendingRequest request = getPendingRequest(requestId);
+        if (request != null && request.getProducer() != producer) {
+            Log.w(TAG, "Ignoring response for request " + requestId + " from a channel that does not own it");
+            return null;
+        }
+        return request;
+    }
+
+    /**
+     * Get and remove a pending request answered by producer (see getPendingRequest).
+     */
+    public PendingRequest removePendingRequest(String requestId, Channel producer) {
+        PendingRequest request = getPendingRequest(requestId, producer);
+        if (request == null || !pendingRequests.remove(request.getRequestId(), request)) {
+            return null;
+        }
+        detach(request);
+        Log.d(TAG, "Removed pending request: " + requestId);
+        return request;
+    }
+
+    /**
+     * Drop a request whose response is no longer wanted and tell its producer to stop.
+     */
+    public void cancelRequest(PendingRequest request) {
+        if (!pendingRequests.remove(request.getRequestId(), request)) {
+            return;
+        }
+        detach(request);
+        StreamFlowControl.finish(request);
+        sendCancel(request);
+        Log.d(TAG, "Cancelled request: " + request.getRequestId());
+    }
+
+    public void cancelRequest(long requestId) {
+        PendingRequest request = pendingRequests.get(requestId);
+        if (request != null) {
+            cancelRequest(request);
+        }
+    }
+
+    /**
+     * Join an in-progress shared response with the given key (see DownloadGroup).
+     * Returns false if there is none or it can no longer take late joiners.
+     */
+    public boolean joinDownload(String key, ChannelHandlerContext ctx, HttpRequest request) {
+        DownloadGroup group = downloadGroups.get(key);
+        return group != null && group.join(ctx, request);
+    }
+
+    /**
+     * Register a shared response so later requests with the same key can join it.
+     */
+    public void addDownloadGroup(DownloadGroup group) {
+        downloadGroups.put(group.getKey(), group);
+    }
+
+    public void removeDownloadGroup(DownloadGroup group) {
+        downloadGroups.remove(group.getKey(), group);
+    }
+
     /**
      * Fail all pending requests for a specific service (when service disconnects).
      */
     public void failRequestsForService(String serviceName) {
-        Iterator<Map.Entry<String, PendingRequest>> iterator = pendingRequests.entrySet().iterator();
+        Iterator<Map.Entry<Long, PendingRequest>> iterator = pendingRequests.entrySet().iterator();
         int count = 0;
         
         while (iterator.hasNext()) {
-            Map.Entry<String, PendingRequest> entry = iterator.next();
+            Map.Entry<Long, PendingRequest> entry = iterator.next();
             PendingRequest request = entry.getValue();
             
             if (serviceName.equals(request.getServiceName())) {
                 iterator.remove();
+                detach(request);
                 count++;
                 
-                // Send error response on the correct event loop
-                if (request.getCtx().channel().isActive()) {
-                    request.getCtx().executor().execute(() -> {
-                        if (request.getCtx().channel().isActive()) {
-                            DefaultFullHttpResponse response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1,
-                                HttpResponseStatus.SERVICE_UNAVAILABLE,
-                                Unpooled.copiedBuffer("Service disconnected".getBytes())
-                            );
-                            response.headers().set("Content-Type", "text/plain");
-                            response.headers().setInt("Content-Length", 20);
-                            request.getCtx().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-                        }
-                    });
-                }
+                failRequest(request, HttpResponseStatus.SERVICE_UNAVAILABLE, "Service disconnected");
             }
         }
         
         if (count > 0) {
             Log.w(TAG, "Failed " + count + " pending requests for disconnected service: " + serviceName);
         }
+
+        // A reconnecting service may serve different content
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            cache.purge(serviceName, null);
+        }
     }
 
     /**
-     * Clean up timed out requests.
+     * Move the requests of a pooled service provider that went away to another
+     * provider, or fail them. Only replayable requests (see
+     * PendingRequest.setReplayMessage) with no response yet are moved; anything
+     * else may already have had side effects or sent part of its response.
      */
-    private void cleanupTimedOutRequests() {
-        Iterator<Map.Entry<String, PendingRequest>> iterator = pendingRequests.entrySet().iterator();
-        
-        while (iterator.hasNext()) {
-            Map.Entry<String, PendingRequest> entry = iterator.next();
-            PendingRequest request = entry.getValue();
-            
-            if (request.isTimedOut(REQUEST_TIMEOUT_MS)) {
-                iterator.remove();
-                Log.w(TAG, "Request timed out: " + request.getRequestId());
-                
-                // Send timeout response on the correct event loop
-                if (request.getCtx().channel().isActive()) {
-                    request.getCtx().executor().execute(() -> {
-                        if (request.getCtx().channel().isActive()) {
-                            DefaultFullHttpResponse response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1,
-                                HttpResponseStatus.GATEWAY_TIMEOUT,
-                                Unpooled.copiedBuffer("Request timed out".getBytes())
-                            );
-                            request.getCtx().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-                        }
-                    });
-                }
+    public void reassignRequests(Channel producer, ServiceManager serviceManager) {
+        int moved = 0;
+        int failed = 0;
+        for (PendingRequest request : pendingRequests.values()) {
+            if (request.getProducer() != producer) {
+                continue;
+            }
+            String replay = request.getReplayMessage();
+            ServiceManager.ServiceEntry peer = null;
+            if (replay != null && !request.isResponseStarted() && request.getRelayResponse() == null) {
+                peer = serviceManager.pickProvider(request.getServiceName(), request.getRequest());
             }
+            if (peer != null && peer.isConnected()) {
+                request.setProvider(peer);
+                request.touch();
+                peer.getChannel().writeAndFlush(new TextWebSocketFrame(replay));
+                moved++;
+            } else if (pendingRequests.remove(request.getRequestId(), request)) {
+                detach(request);
+                StreamFlowControl.finish(request);
+                failRequest(request, HttpResponseStatus.SERVICE_UNAVAILABLE, "Service provider disconnected");
+                failed++;
+            }
+        }
+        if (moved + failed > 0) {
+            Log.w(TAG, "Provider left: moved " + moved + " requests, failed " + failed);
+        }
+    }
+
+    /**
+     * Release what a request holds once it is no longer pending.
+     */
+    private static void detach(PendingRequest request) {
+        request.cancelTimeout();
+        request.unwatchClient();
+        request.releaseProvider();
+    }
+
+    private void scheduleTimeout(PendingRequest request, long delayNanos) {
+        request.setTimeout(timer.newTimeout(t -> checkTimeout(request), delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Fail the request if its deadline has passed, otherwise wait for the new deadline.
+     * The error is written on the request's own event loop (see failRequest).
+     */
+    private void checkTimeout(PendingRequest request) {
+        if (pendingRequests.get(request.getRequestId()) != request) {
+            return;
+        }
+        long remaining = request.getDeadline() - System.nanoTime();
+        if (remaining > 0) {
+            scheduleTimeout(request, remaining);
+            return;
+        }
+        if (pendingRequests.remove(request.getRequestId(), request)) {
+            detach(request);
+            StreamFlowControl.finish(request);
+            sendCancel(request);
+            boolean started = request.isResponseStarted();
+            Log.w(TAG, (started ? "Response stalled: " : "Request timed out: ") + request.getRequestId());
+            failRequest(request, HttpResponseStatus.GATEWAY_TIMEOUT,
+                started ? "Response stalled" : "Request timed out");
         }
     }
 
@@ -130,23 +319,59 @@ public class RequestManager {
      * Shutdown the request manager.
      */
     public void shutdown() {
-        scheduler.shutdown();
+        timer.stop();
         
-        // Send error response to all pending requests on the correct event loop
+        // Send error response to all pending requests
         for (PendingRequest request : pendingRequests.values()) {
-            if (request.getCtx().channel().isActive()) {
-                request.getCtx().executor().execute(() -> {
-                    if (request.getCtx().channel().isActive()) {
-                        DefaultFullHttpResponse response = new DefaultFullHttpResponse(
-                            HttpVersion.HTTP_1_1,
-                            HttpResponseStatus.SERVICE_UNAVAILABLE,
-                            Unpooled.copiedBuffer("Server shutting down".getBytes())
-                        );
-                        request.getCtx().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-                    }
-                });
-            }
+            failRequest(request, HttpResponseStatus.SERVICE_UNAVAILABLE, "Server shutting down");
         }
         pendingRequests.clear();
+        if (responseCache != null) {
+            responseCache.clear();
+        }
+    }
+
+    private static void sendCancel(PendingRequest request) {
+        Channel producer = request.getProducer();
+        if (producer == null || !producer.isActive()) {
+            return;
+        }
+        Message message = new Message(Message.TYPE_HTTP_CANCEL);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("request_id", request.getWireId());
+        message.setPayload(payload);
+        producer.writeAndFlush(new TextWebSocketFrame(message.toJson()));
+    }
+
+    /**
+     * Send an error response for a relayed request on the correct event loop.
+     * The connection is kept alive when the client allows it; a streamed response
+     * whose headers were already sent can only be aborted by closing.
+     */
+    private static void failRequest(PendingRequest request, HttpResponseStatus status, String message) {
+        if (request.getSink() != null) {
+            request.getSink().fail(status, message);
+            return;
+        }
+        ChannelHandlerContext ctx = request.getCtx();
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            if (request.isResponseStarted()) {
+                ctx.close();
+                return;
+            }
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                ByteBufUtil.writeUtf8(ctx.alloc(), message)
+            );
+            response.headers().set("Content-Type", "text/plain");
+            HttpHandler.writeResponse(ctx, request.getRequest(), response);
+        });
     }
 }
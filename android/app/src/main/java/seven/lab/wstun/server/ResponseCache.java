@@ -0,0 +1,500 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import seven.lab.wstun.protocol.HttpRelayResponse;
+
+/**
+ * Memory-bounded, LRU-evicted cache of relayed service responses.
+ *
+ * Complete 200 responses to GETs are stored when the service allows it: a
+ * Cache-Control max-age (or s-maxage) without no-store or private, or an ETag.
+ * A fresh entry is answered from memory without a round trip to the service,
+ * as a retained duplicate of the stored body. A stale entry with an ETag is
+ * revalidated: the relayed request carries If-None-Match, and a 304 from the
+ * service refreshes the entry and is answered from it.
+ *
+ * Entries are keyed by service and request URI. The request headers named by the
+ * response's Vary are recorded with the entry; a request that differs in them is
+ * a miss, and its response replaces the stored variant. Streamed responses are
+ * not cached.
+ *
+ * Services drop entries with a cache_purge message, and all of a service's
+ * entries are dropped when it disconnects.
+ */
+public class ResponseCache {
+
+    private static final String TAG = "ResponseCache";
+
+    // Rough per-entry overhead (key, headers, bookkeeping) counted against the cap
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * A stored response. The body is an unpooled heap buffer that the cache never
+     * releases, so duplicates handed out stay valid after eviction.
+     */
+    private static final class Entry {
+        private final String key;
+        private final String serviceName;
+        private final String path;
+        private final Map<String, String> headers;
+        private final ByteBuf body;
+        private final String etag;
+        private final Map<String, String> vary;  // lower-case request header -> value
+        private final long size;
+        private volatile long storedAt;   // System.nanoTime() of the last store or revalidation
+        private volatile long expiresAt;
+
+        Entry(String key, String serviceName, String path, Map<String, String> headers, ByteBuf body,
+              String etag, Map<String, String> vary) {
+            this.key = key;
+            this.serviceName = serviceName;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            this.vary = vary;
+            this.size = body.readableBytes() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * A cached response found for a request.
+     */
+    public static final class Hit {
+        private final Entry entry;
+        private final boolean fresh;
+
+        Hit(Entry entry, boolean fresh) {
+            this.entry = entry;
+            this.fresh = fresh;
+        }
+
+        /**
+         * Whether it can be served without asking the service.
+         */
+        public boolean isFresh() {
+            return fresh;
+        }
+
+        /**
+         * The validator to revalidate a stale hit with.
+         */
+        public String getEtag() {
+            return entry.etag;
+        }
+    }
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 16;
+    }
+
+    /**
+     * Whether a request may be answered from, or fill, the cache.
+     */
+    public static boolean isCacheable(FullHttpRequest request) {
+        if (request.method() != HttpMethod.GET || request.content().isReadable()) {
+            return false;
+        }
+        return !parseCacheControl(request.headers().get(HttpHeaderNames.CACHE_CONTROL)).containsKey("no-store");
+    }
+
+    /**
+     * Find the stored response for a request. A stale entry is only returned if
+     * it can be revalidated; otherwise it is dropped.
+     */
+    public synchronized Hit lookup(String serviceName, HttpRequest request) {
+        Entry entry = entries.get(key(serviceName, request));
+        if (entry == null || !varyMatches(entry, request)) {
+            return null;
+        }
+        Map<String, String> requestCacheControl =
+            parseCacheControl(request.headers().get(HttpHeaderNames.CACHE_CONTROL));
+        boolean fresh = System.nanoTime() - entry.expiresAt < 0
+            && !requestCacheControl.containsKey("no-cache") && !"0".equals(requestCacheControl.get("max-age"));
+        if (!fresh && entry.etag == null) {
+            remove(entry);
+            return null;
+        }
+        return new Hit(entry, fresh);
+    }
+
+    /**
+     * Answer a request from a cache hit, with 304 if the client already has it.
+     */
+    public static void serve(ChannelHandlerContext ctx, HttpRequest request, Hit hit) {
+        Entry entry = hit.entry;
+        if (entry.etag != null && etagMatches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), entry.etag)) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+            HttpHandler.addStaticCorsHeaders(response);
+            response.headers().set(HttpHeaderNames.ETAG, entry.etag);
+            String cacheControl = header(entry.headers, "Cache-Control");
+            if (cacheControl != null) {
+                response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+            }
+            HttpHandler.writeResponse(ctx, request, response);
+            return;
+        }
+        HttpHandler.sendRelayResponse(ctx, request, toResponse(hit), entry.body.retainedDuplicate());
+    }
+
+    /**
+     * The stored response head, with its current Age.
+     */
+    private static HttpRelayResponse toResponse(Hit hit) {
+        Map<String, String> headers = new HashMap<>(hit.entry.headers);
+        long age = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - hit.entry.storedAt);
+        headers.put("Age", String.valueOf(age));
+        HttpRelayResponse response = new HttpRelayResponse();
+        response.setStatus(HttpResponseStatus.OK.code());
+        response.setHeaders(headers);
+        return response;
+    }
+
+    /**
+     * Store a complete response if the service allows it. Does not take ownership
+     * of body; the bytes are copied.
+     */
+    public synchronized void store(String serviceName, String path, HttpRequest request,
+                                   HttpRelayResponse response, ByteBuf body) {
+        String key = key(serviceName, request);
+        Entry old = entries.get(key);
+        if (old != null) {
+            // Whatever the service sent now supersedes it
+            remove(old);
+        }
+
+        Map<String, String> headers = response.getHeaders() != null ? response.getHeaders() : new HashMap<>();
+        Map<String, String> cacheControl = parseCacheControl(header(headers, "Cache-Control"));
+        long lifetimeMs = freshnessLifetimeMs(cacheControl);
+        String etag = header(headers, "ETag");
+        String varyHeader = header(headers, "Vary");
+        // Cookies identify a user as much as Authorization does, so both need explicit permission to share
+        boolean authorized = (request.headers().contains(HttpHeaderNames.AUTHORIZATION)
+                || request.headers().contains(HttpHeaderNames.COOKIE))
+            && !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage");
+        if (response.getStatus() != HttpResponseStatus.OK.code()
+                || cacheControl.containsKey("no-store") || cacheControl.containsKey("private")
+                || header(headers, "Set-Cookie") != null || authorized
+                || (varyHeader != null && varyHeader.contains("*"))
+                || (lifetimeMs <= 0 && etag == null)
+                || body.readableBytes() + ENTRY_OVERHEAD > maxEntryBytes) {
+            return;
+        }
+
+        Map<String, String> stored = new HashMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Content-Length")
+                    && !name.equalsIgnoreCase("Age")) {
+                stored.put(name, header.getValue());
+            }
+        }
+        Map<String, String> vary = new HashMap<>();
+        if (varyHeader != null) {
+            for (String name : varyHeader.split(",")) {
+                name = name.trim().toLowerCase();
+                if (!name.isEmpty()) {
+                    vary.put(name, requestHeaderValue(request, name));
+                }
+            }
+        }
+
+        Entry entry = new Entry(key, serviceName, path, stored,
+            Unpooled.wrappedBuffer(ByteBufUtil.getBytes(body)), etag, vary);
+        entry.storedAt = System.nanoTime();
+        entry.expiresAt = entry.storedAt + TimeUnit.MILLISECONDS.toNanos(lifetimeMs);
+        entries.put(key, entry);
+        totalBytes += entry.size;
+        evict();
+        Log.d(TAG, "Stored " + key + " (" + body.readableBytes() + " bytes, " + lifetimeMs + " ms)");
+    }
+
+    /**
+     * Mark a revalidated entry fresh again, using the 304's Cache-Control if it has one.
+     */
+    public synchronized void refresh(Hit hit, HttpRelayResponse notModified) {
+        Entry entry = hit.entry;
+        String cacheControl = notModified.getHeaders() != null ? header(notModified.getHeaders(), "Cache-Control") : null;
+        if (cacheControl == null) {
+            cacheControl = header(entry.headers, "Cache-Control");
+        }
+        long lifetimeMs = freshnessLifetimeMs(parseCacheControl(cacheControl));
+        entry.storedAt = System.nanoTime();
+        entry.expiresAt = entry.storedAt + TimeUnit.MILLISECONDS.toNanos(lifetimeMs);
+    }
+
+    /**
+     * Drop a stale entry whose resource has changed.
+     */
+    public synchronized void invalidate(Hit hit) {
+        if (entries.get(hit.entry.key) == hit.entry) {
+            remove(hit.entry);
+        }
+    }
+
+    /**
+     * Drop a service's entries for the given service-relative paths (any query),
+     * or all of them if paths is null.
+     */
+    public synchronized void purge(String serviceName, List<String> paths) {
+        int count = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.serviceName.equals(serviceName)) {
+                continue;
+            }
+            if (paths != null && !paths.contains(entry.path.substring(serviceName.length() + 1))) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= entry.size;
+            count++;
+        }
+        if (count > 0) {
+            Log.d(TAG, "Purged " + count + " entries of " + serviceName);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Sink for a relayed GET that stores a cacheable complete response, and answers
+     * a 304 to its revalidation from the stale entry. Passes everything on to the
+     * downstream sink (a coalesced group), or straight to the client if there is none.
+     */
+    public ResponseSink newFill(String serviceName, String path, ChannelHandlerContext ctx, HttpRequest request,
+                                String requestId, Hit stale, ResponseSink downstream) {
+        return new Fill(serviceName, path, ctx, request, requestId, stale, downstream);
+    }
+
+    private class Fill implements ResponseSink {
+        private final String serviceName;
+        private final String path;
+        private final ChannelHandlerContext ctx;
+        private final HttpRequest request;
+        private final String requestId;
+        private final Hit stale;
+        private final ResponseSink downstream;
+        private boolean started;
+
+        Fill(String serviceName, String path, ChannelHandlerContext ctx, HttpRequest request, String requestId,
+             Hit stale, ResponseSink downstream) {
+            this.serviceName = serviceName;
+            this.path = path;
+            this.ctx = ctx;
+            this.request = request;
+            this.requestId = requestId;
+            this.stale = stale;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void start(int status, JsonObject headers) {
+            if (stale != null) {
+                invalidate(stale);
+            }
+            started = true;
+            if (downstream != null) {
+                downstream.start(status, headers);
+            } else {
+                HttpHandler.startStreamingResponse(ctx, request, requestId, status, headers);
+            }
+        }
+
+        @Override
+        public Future<Void> chunk(ByteBuf data) {
+            if (downstream != null) {
+                return downstream.chunk(data);
+            }
+            ChannelFuture future = HttpHandler.sendStreamingChunk(ctx, data);
+            if (future != null) {
+                return future;
+            }
+            return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+
+        @Override
+        public void end() {
+            if (downstream != null) {
+                downstream.end();
+            } else {
+                HttpHandler.endStreamingResponse(ctx, request);
+            }
+        }
+
+        @Override
+        public void complete(HttpRelayResponse response, ByteBuf body) {
+            if (body == null) {
+                body = HttpHandler.decodeRelayBody(ctx.alloc(), response);
+            }
+            if (stale != null && response.getStatus() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                // Our own revalidation; the client gets the stored response
+                body.release();
+                refresh(stale, response);
+                if (downstream != null) {
+                    downstream.complete(toResponse(stale), stale.entry.body.retainedDuplicate());
+                } else {
+                    serve(ctx, request, stale);
+                }
+                return;
+            }
+            try {
+                store(serviceName, path, request, response, body);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to cache " + path + ": " + e.getMessage());
+            }
+            if (downstream != null) {
+                downstream.complete(response, body);
+            } else {
+                HttpHandler.sendRelayResponse(ctx, request, response, body);
+            }
+        }
+
+        @Override
+        public void fail(HttpResponseStatus status, String message) {
+            if (downstream != null) {
+                downstream.fail(status, message);
+            } else {
+                HttpHandler.sendErrorResponse(ctx, request, started, status, message);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        totalBytes -= entry.size;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            totalBytes -= entry.size;
+        }
+    }
+
+    private static String key(String serviceName, HttpRequest request) {
+        return serviceName + " " + request.uri();
+    }
+
+    private static boolean varyMatches(Entry entry, HttpRequest request) {
+        for (Map.Entry<String, String> vary : entry.vary.entrySet()) {
+            if (!vary.getValue().equals(requestHeaderValue(request, vary.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String requestHeaderValue(HttpRequest request, String name) {
+        return String.join(",", request.headers().getAll(name));
+    }
+
+    /**
+     * Freshness lifetime for a shared cache: s-maxage, then max-age; 0 if the
+     * response must be revalidated on every use.
+     */
+    private static long freshnessLifetimeMs(Map<String, String> cacheControl) {
+        if (cacheControl.containsKey("no-cache")) {
+            return 0;
+        }
+        String maxAge = cacheControl.containsKey("s-maxage") ? cacheControl.get("s-maxage") : cacheControl.get("max-age");
+        if (maxAge == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(maxAge)) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse Cache-Control into lower-case directive -> value ("" if it has none).
+     */
+    static Map<String, String> parseCacheControl(String value) {
+        Map<String, String> directives = new HashMap<>();
+        if (value == null) {
+            return directives;
+        }
+        for (String part : value.split(",")) {
+            String[] nameValue = part.trim().split("=", 2);
+            if (nameValue[0].isEmpty()) {
+                continue;
+            }
+            String argument = nameValue.length > 1 ? nameValue[1].trim().replace("\"", "") : "";
+            directives.put(nameValue[0].trim().toLowerCase(), argument);
+        }
+        return directives;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against an entity tag.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
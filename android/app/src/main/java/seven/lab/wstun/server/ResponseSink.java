@@ -0,0 +1,45 @@
+package seven.lab.wstun.server;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.Future;
+import seven.lab.wstun.protocol.HttpRelayResponse;
+
+/**
+ * Receiver for a relayed response that is not written straight to the requesting
+ * HTTP channel, e.g. a download shared by several clients (DownloadGroup) or one
+ * segment of a multi-source download (SwarmDownload).
+ *
+ * WebSocketHandler calls these from the producer's event loop.
+ */
+public interface ResponseSink {
+
+    /**
+     * Streamed response head (http_response_start).
+     */
+    void start(int status, JsonObject headers);
+
+    /**
+     * Streamed body chunk. Takes ownership of data. The returned future completes
+     * when the chunk has been consumed, and drives credit for the producer.
+     */
+    Future<Void> chunk(ByteBuf data);
+
+    /**
+     * End of a streamed response.
+     */
+    void end();
+
+    /**
+     * Complete (non-streamed) response. Takes ownership of body, which may be
+     * null to use the response's own body.
+     */
+    void complete(HttpRelayResponse response, ByteBuf body);
+
+    /**
+     * The producer failed or went away.
+     */
+    void fail(HttpResponseStatus status, String message);
+}
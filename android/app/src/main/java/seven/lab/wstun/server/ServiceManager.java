@@ -6,11 +6,25 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import seven.lab.wstun.protocol.Message;
 import seven.lab.wstun.protocol.ServiceRegistration;
@@ -22,20 +36,38 @@ import seven.lab.wstun.protocol.ServiceRegistration;
  * - Service: A type of service (e.g., fileshare, chat)
  * - ServiceInstance: A specific room/session with UUID, name, and optional token
  * - User: Connected to a specific instance
+ *
+ * A service registered with pool set can have several providers (e.g. the same
+ * service open in tabs on several devices). Relayed requests go to the provider
+ * with the fewest requests in flight, unless the request is pinned to one by its
+ * instance or a sticky cookie (see pickProvider). When a provider leaves, only
+ * its own requests are affected.
  */
 public class ServiceManager {
     
     private static final String TAG = "ServiceManager";
+    
+    // Pins a relayed request to the provider owning this instance (also ?instance=)
+    public static final String INSTANCE_HEADER = "X-WSTun-Instance";
 
-    // Service name -> ServiceEntry (the service provider)
+    // Service name -> ServiceEntry (the service provider; the first one for a pool)
     private final Map<String, ServiceEntry> services = new ConcurrentHashMap<>();
     
+    // Service name -> all providers, in registration order (guarded by itself for writes)
+    private final Map<String, List<ServiceEntry>> servicePools = new ConcurrentHashMap<>();
+    
+    // Rotates the starting point of provider selection so ties are spread out
+    private final AtomicInteger nextProvider = new AtomicInteger();
+    
     // Instance UUID -> ServiceInstance
     private final Map<String, ServiceInstance> instances = new ConcurrentHashMap<>();
     
-    // Service name -> List of instance UUIDs
+    // Service name -> instance UUIDs, in creation order
     private final Map<String, List<String>> serviceInstances = new ConcurrentHashMap<>();
     
+    // Service name -> cached instance list JSON (dropped whenever an instance changes)
+    private final Map<String, JsonArray> instanceLists = new ConcurrentHashMap<>();
+    
     // Channel -> Service name (for cleanup on disconnect)
     private final Map<Channel, String> channelToService = new ConcurrentHashMap<>();
     
@@ -48,9 +80,21 @@ public class ServiceManager {
     // Channel -> List of file IDs owned by that channel
     private final Map<Channel, List<String>> channelToFiles = new ConcurrentHashMap<>();
     
+    // Content index for swarm downloads: fileId -> FileInfo with a content hash
+    private final Map<String, FileInfo> hashedFiles = new ConcurrentHashMap<>();
+    
+    // Scoped content hash -> files with that content (see addFileSource)
+    private final Map<String, List<FileInfo>> filesByHash = new ConcurrentHashMap<>();
+    
+    // fileId -> scoped content hash key it is indexed under
+    private final Map<String, String> infoScopes = new ConcurrentHashMap<>();
+    
     // Client registry: userId -> ClientInfo (for user clients)
     private final Map<String, ClientInfo> clients = new ConcurrentHashMap<>();
     
+    // Client type -> clients of that type (kept in step with clients)
+    private final Map<String, Set<ClientInfo>> clientsByType = new ConcurrentHashMap<>();
+    
     // Channel -> userId (for client cleanup on disconnect)
     private final Map<Channel, String> channelToClient = new ConcurrentHashMap<>();
     
@@ -59,21 +103,33 @@ public class ServiceManager {
 
     private ServiceChangeListener listener;
     private RequestManager requestManager;
+    private StaticContentCache staticContentCache;
+    private volatile BlobCache blobCache;  // null when the relay cache is disabled
     
     /**
      * Represents a service instance (room/session).
+     *
+     * Each instance is bound to the event loop of the channel that created it.
+     * Membership changes and broadcasts to the room run on that loop only (see
+     * ServiceManager.runOnInstance), so the member map needs no locking and
+     * joins, leaves and messages are seen by everyone in one order. Other threads
+     * read the members through getUserIds, an immutable snapshot.
      */
     public static class ServiceInstance {
         private final String uuid;
         private final String serviceName;
         private final String name;
         private final String token;
-        private Channel ownerChannel;
+        private final EventLoop eventLoop;
+        private volatile Channel ownerChannel;
         private final long createdAt;
-        private final List<String> userIds = new ArrayList<>();
+        // userId -> channel, touched only on eventLoop
+        private final Map<String, Channel> members = new LinkedHashMap<>();
+        // Copy of the member ids for other threads, replaced on every change
+        private volatile List<String> userIds = Collections.emptyList();
         // Grace period for reconnection (10 seconds)
         private static final long OWNER_GRACE_PERIOD_MS = 10000;
-        private long ownerDisconnectedAt = 0;
+        private volatile long ownerDisconnectedAt = 0;
         
         public ServiceInstance(String uuid, String serviceName, String name, String token, Channel ownerChannel) {
             this.uuid = uuid;
@@ -81,6 +137,7 @@ public class ServiceManager {
             this.name = name;
             this.token = token;
             this.ownerChannel = ownerChannel;
+            this.eventLoop = ownerChannel.eventLoop();
             this.createdAt = System.currentTimeMillis();
         }
         
@@ -90,6 +147,7 @@ public class ServiceManager {
         public String getToken() { return token; }
         public Channel getOwnerChannel() { return ownerChannel; }
         public long getCreatedAt() { return createdAt; }
+        public EventLoop getEventLoop() { return eventLoop; }
         public List<String> getUserIds() { return userIds; }
         
         public boolean hasToken() {
@@ -101,14 +159,41 @@ public class ServiceManager {
             return token.equals(inputToken);
         }
         
-        public void addUser(String userId) {
-            if (!userIds.contains(userId)) {
-                userIds.add(userId);
+        /**
+         * Add or move a member. Must run on the instance's event loop.
+         */
+        void addUser(String userId, Channel channel) {
+            members.put(userId, channel);
+            userIds = Collections.unmodifiableList(new ArrayList<>(members.keySet()));
+        }
+        
+        /**
+         * Remove a member if it is still on the given channel, so cleanup for an
+         * old connection cannot evict the same user's newer one. Must run on the
+         * instance's event loop.
+         */
+        void removeUser(String userId, Channel channel) {
+            if (members.remove(userId, channel)) {
+                userIds = Collections.unmodifiableList(new ArrayList<>(members.keySet()));
             }
         }
         
-        public void removeUser(String userId) {
-            userIds.remove(userId);
+        /**
+         * Send frame content to every member and the owner, except the sender.
+         * Must run on the instance's event loop. Takes ownership of content.
+         */
+        void broadcast(ByteBuf content, Channel sender) {
+            List<Channel> recipients = new ArrayList<>(members.size() + 1);
+            for (Channel channel : members.values()) {
+                if (channel != sender) {
+                    recipients.add(channel);
+                }
+            }
+            Channel owner = ownerChannel;
+            if (owner != null && owner != sender) {
+                recipients.add(owner);
+            }
+            Broadcaster.broadcast(content, recipients);
         }
         
         public boolean isOwnerConnected() {
@@ -236,15 +321,22 @@ public class ServiceManager {
         private final String mimeType;
         private final String ownerId;
         private final Channel ownerChannel;
+        private final String contentHash;  // Optional, e.g. "sha256:<hex>"
 
         public FileInfo(String fileId, String filename, long size, String mimeType, 
                        String ownerId, Channel ownerChannel) {
+            this(fileId, filename, size, mimeType, ownerId, ownerChannel, null);
+        }
+
+        public FileInfo(String fileId, String filename, long size, String mimeType, 
+                       String ownerId, Channel ownerChannel, String contentHash) {
             this.fileId = fileId;
             this.filename = filename;
             this.size = size;
             this.mimeType = mimeType;
             this.ownerId = ownerId;
             this.ownerChannel = ownerChannel;
+            this.contentHash = contentHash;
         }
 
         public String getFileId() { return fileId; }
@@ -253,6 +345,7 @@ public class ServiceManager {
         public String getMimeType() { return mimeType; }
         public String getOwnerId() { return ownerId; }
         public Channel getOwnerChannel() { return ownerChannel; }
+        public String getContentHash() { return contentHash; }
 
         public JsonObject toJson() {
             JsonObject obj = new JsonObject();
@@ -261,6 +354,9 @@ public class ServiceManager {
             obj.addProperty("size", size);
             obj.addProperty("mimeType", mimeType);
             obj.addProperty("ownerId", ownerId);
+            if (contentHash != null) {
+                obj.addProperty("hash", contentHash);
+            }
             return obj;
         }
     }
@@ -281,6 +377,10 @@ public class ServiceManager {
         private final ServiceRegistration registration;
         private final long registeredAt;
         private final String authToken;
+        // Relayed requests waiting on this provider
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // Shared by the providers of a service with max_in_flight set
+        private volatile AdmissionQueue admissionQueue;
 
         public ServiceEntry(ServiceRegistration registration, Channel channel) {
             this.name = registration.getName();
@@ -320,6 +420,22 @@ public class ServiceManager {
             return channel != null && channel.isActive();
         }
         
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+        
+        void addOutstanding(int delta) {
+            outstanding.addAndGet(delta);
+            AdmissionQueue queue = admissionQueue;
+            if (delta < 0 && queue != null) {
+                queue.drain();
+            }
+        }
+        
+        public AdmissionQueue getAdmissionQueue() {
+            return admissionQueue;
+        }
+        
         public String getAuthToken() {
             return authToken;
         }
@@ -348,6 +464,14 @@ public class ServiceManager {
         this.requestManager = requestManager;
     }
 
+    public void setStaticContentCache(StaticContentCache staticContentCache) {
+        this.staticContentCache = staticContentCache;
+    }
+
+    public void setBlobCache(BlobCache blobCache) {
+        this.blobCache = blobCache;
+    }
+
     // Reserved service names that cannot be used
     private static final java.util.Set<String> RESERVED_NAMES = new java.util.HashSet<>(
         java.util.Arrays.asList(
@@ -382,15 +506,41 @@ public class ServiceManager {
             return false;
         }
 
-        // Check if service with same name exists
-        if (services.containsKey(name)) {
-            Log.w(TAG, "Service already exists: " + name);
-            return false;
-        }
-
         ServiceEntry entry = new ServiceEntry(registration, channel);
-        services.put(name, entry);
+        int providers;
+        synchronized (servicePools) {
+            // A second provider may only join a pool both sides asked for, proving it with the pool's auth token
+            ServiceEntry existing = services.get(name);
+            if (existing != null && !(existing.getRegistration().isPool() && registration.isPool()
+                    && existing.getAuthToken() != null && !existing.getAuthToken().isEmpty()
+                    && existing.getAuthToken().equals(registration.getAuthToken()))) {
+                Log.w(TAG, "Service already exists: " + name);
+                return false;
+            }
+            List<ServiceEntry> pool = servicePools.computeIfAbsent(name, k -> new CopyOnWriteArrayList<>());
+            pool.add(entry);
+            providers = pool.size();
+            if (existing == null) {
+                services.put(name, entry);
+                if (registration.getMaxInFlight() > 0 && requestManager != null) {
+                    entry.admissionQueue = new AdmissionQueue(name, registration, this, requestManager);
+                }
+            } else {
+                entry.admissionQueue = existing.admissionQueue;
+            }
+        }
         channelToService.put(channel, name);
+        if (staticContentCache != null) {
+            staticContentCache.invalidateService(name);
+        }
+
+        if (providers > 1) {
+            Log.i(TAG, "Provider added to service " + name + " (" + providers + " providers)");
+            if (entry.admissionQueue != null) {
+                entry.admissionQueue.drain();
+            }
+            return true;
+        }
 
         Log.i(TAG, "Service registered: " + name + " (type: " + registration.getType() + ")");
 
@@ -402,18 +552,132 @@ public class ServiceManager {
     }
 
     /**
-     * Unregister a service by name.
+     * Unregister the provider of a service on the given channel.
      */
-    public void unregisterService(String name) {
-        ServiceEntry entry = services.remove(name);
-        if (entry != null) {
-            channelToService.remove(entry.getChannel());
-            Log.i(TAG, "Service unregistered: " + name);
-
-            if (listener != null) {
-                listener.onServiceRemoved(entry);
+    public void unregisterService(String name, Channel channel) {
+        if (name.equals(channelToService.get(channel))) {
+            removeProvider(name, channel, "unregistered");
+        }
+    }
+
+    /**
+     * Remove one provider. The service goes away with its last provider;
+     * otherwise the provider's requests are moved to the others where possible.
+     */
+    private void removeProvider(String name, Channel channel, String reason) {
+        ServiceEntry removed = null;
+        boolean last;
+        synchronized (servicePools) {
+            List<ServiceEntry> pool = servicePools.get(name);
+            if (pool == null) {
+                return;
+            }
+            for (ServiceEntry entry : pool) {
+                if (entry.getChannel() == channel) {
+                    removed = entry;
+                }
             }
+            if (removed == null) {
+                return;
+            }
+            pool.remove(removed);
+            last = pool.isEmpty();
+            if (last) {
+                servicePools.remove(name);
+                services.remove(name);
+            } else if (services.get(name) == removed) {
+                services.put(name, pool.get(0));
+            }
+        }
+        channelToService.remove(channel);
+        if (staticContentCache != null) {
+            // Static resources come from the first provider's registration
+            staticContentCache.invalidateService(name);
         }
+
+        if (!last) {
+            Log.i(TAG, "Provider of service " + name + " " + reason);
+            if (requestManager != null) {
+                requestManager.reassignRequests(channel, this);
+            }
+            return;
+        }
+
+        Log.i(TAG, "Service " + reason + ": " + name);
+
+        if (removed.admissionQueue != null) {
+            removed.admissionQueue.failAll();
+        }
+
+        // Fail any pending HTTP requests for this service
+        if (requestManager != null) {
+            requestManager.failRequestsForService(name);
+        }
+
+        if (listener != null) {
+            listener.onServiceRemoved(removed);
+        }
+    }
+
+    /**
+     * Choose the provider of a service to relay a request to: the one owning the
+     * request's instance, or picked by the service's sticky cookie, if it is
+     * connected; otherwise the one with the fewest requests in flight.
+     * Returns null if the service has no providers.
+     */
+    public ServiceEntry pickProvider(String name, HttpRequest request) {
+        List<ServiceEntry> pool = servicePools.get(name);
+        if (pool == null) {
+            return null;
+        }
+        ServiceEntry[] providers = pool.toArray(new ServiceEntry[0]);
+        if (providers.length <= 1) {
+            return providers.length == 1 ? providers[0] : null;
+        }
+
+        ServiceEntry sticky = stickyProvider(providers, request);
+        if (sticky != null && sticky.isConnected()) {
+            return sticky;
+        }
+
+        ServiceEntry best = null;
+        int start = nextProvider.getAndIncrement() & 0x7fffffff;
+        for (int i = 0; i < providers.length; i++) {
+            ServiceEntry candidate = providers[(start + i) % providers.length];
+            if (candidate.isConnected() && (best == null || candidate.getOutstanding() < best.getOutstanding())) {
+                best = candidate;
+            }
+        }
+        return best != null ? best : providers[0];
+    }
+
+    private ServiceEntry stickyProvider(ServiceEntry[] providers, HttpRequest request) {
+        // Requests for an instance go to the provider that owns it
+        String uuid = request.headers().get(INSTANCE_HEADER);
+        if (uuid == null) {
+            List<String> values = new QueryStringDecoder(request.uri()).parameters().get("instance");
+            uuid = values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+        ServiceInstance instance = uuid != null ? instances.get(uuid) : null;
+        if (instance != null) {
+            for (ServiceEntry provider : providers) {
+                if (provider.getChannel() == instance.getOwnerChannel()) {
+                    return provider;
+                }
+            }
+        }
+
+        String cookieName = providers[0].getRegistration().getStickyCookie();
+        String cookieHeader = request.headers().get(HttpHeaderNames.COOKIE);
+        if (cookieName == null || cookieHeader == null) {
+            return null;
+        }
+        for (Cookie cookie : ServerCookieDecoder.LAX.decode(cookieHeader)) {
+            if (cookie.name().equals(cookieName)) {
+                return providers[Math.floorMod(cookie.value().hashCode(), providers.length)];
+            }
+        }
+        return null;
     }
 
     /**
@@ -427,7 +691,8 @@ public class ServiceManager {
         channelToInstance.put(ownerChannel, uuid);
         
         // Track instances per service
-        serviceInstances.computeIfAbsent(serviceName, k -> new ArrayList<>()).add(uuid);
+        serviceInstances.computeIfAbsent(serviceName, k -> new CopyOnWriteArrayList<>()).add(uuid);
+        invalidateInstanceList(serviceName);
         
         Log.i(TAG, "Instance created: " + uuid + " (" + name + ") for service " + serviceName);
         return instance;
@@ -458,6 +723,27 @@ public class ServiceManager {
         return result;
     }
     
+    /**
+     * Get the JSON list of a service's instances, as built by toJson.
+     * The array is cached and shared between callers, so it must not be modified.
+     */
+    public JsonArray getInstanceList(String serviceName) {
+        if (!serviceInstances.containsKey(serviceName)) {
+            return new JsonArray();
+        }
+        return instanceLists.computeIfAbsent(serviceName, k -> {
+            JsonArray arr = new JsonArray();
+            for (ServiceInstance inst : getInstancesForService(k)) {
+                arr.add(inst.toJson());
+            }
+            return arr;
+        });
+    }
+    
+    private void invalidateInstanceList(String serviceName) {
+        instanceLists.remove(serviceName);
+    }
+    
     /**
      * Remove an instance.
      */
@@ -469,6 +755,7 @@ public class ServiceManager {
             if (uuids != null) {
                 uuids.remove(uuid);
             }
+            invalidateInstanceList(instance.getServiceName());
             Log.i(TAG, "Instance removed: " + uuid);
         }
     }
@@ -562,15 +849,11 @@ public class ServiceManager {
             if (instance != null) {
                 // Mark owner as disconnected but keep instance for grace period
                 instance.markOwnerDisconnected();
+                invalidateInstanceList(instance.getServiceName());
                 Log.i(TAG, "Instance owner disconnected, grace period started: " + uuid);
                 
-                // Schedule cleanup after grace period
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(ServiceInstance.OWNER_GRACE_PERIOD_MS + 1000);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
+                // Schedule cleanup after grace period, on the instance's own loop
+                instance.getEventLoop().schedule(() -> {
                     // Check if instance still needs cleanup (owner didn't reconnect)
                     ServiceInstance inst = instances.get(uuid);
                     if (inst != null && !inst.isOwnerConnected()) {
@@ -579,9 +862,10 @@ public class ServiceManager {
                         if (uuids != null) {
                             uuids.remove(uuid);
                         }
+                        invalidateInstanceList(inst.getServiceName());
                         Log.i(TAG, "Instance cleaned up after grace period: " + uuid);
                     }
-                }).start();
+                }, ServiceInstance.OWNER_GRACE_PERIOD_MS + 1000, TimeUnit.MILLISECONDS);
             }
         }
     }
@@ -602,6 +886,7 @@ public class ServiceManager {
         
         instance.reconnectOwner(newOwnerChannel);
         channelToInstance.put(newOwnerChannel, uuid);
+        invalidateInstanceList(instance.getServiceName());
         Log.i(TAG, "Instance reclaimed by new owner: " + uuid);
         return true;
     }
@@ -619,21 +904,9 @@ public class ServiceManager {
         // Clean up instance if any
         cleanupInstanceForChannel(channel);
         
-        String serviceName = channelToService.remove(channel);
+        String serviceName = channelToService.get(channel);
         if (serviceName != null) {
-            ServiceEntry entry = services.remove(serviceName);
-            if (entry != null) {
-                Log.i(TAG, "Service disconnected: " + serviceName);
-                
-                // Fail any pending HTTP requests for this service
-                if (requestManager != null) {
-                    requestManager.failRequestsForService(serviceName);
-                }
-                
-                if (listener != null) {
-                    listener.onServiceRemoved(entry);
-                }
-            }
+            removeProvider(serviceName, channel, "disconnected");
         }
     }
 
@@ -669,26 +942,52 @@ public class ServiceManager {
      * Kick (disconnect) a service.
      */
     public void kickService(String name) {
-        ServiceEntry entry = services.get(name);
-        if (entry != null && entry.getChannel() != null) {
-            entry.getChannel().close();
-            // The channel close will trigger onChannelDisconnect
+        List<ServiceEntry> pool = servicePools.get(name);
+        if (pool == null) {
+            return;
+        }
+        for (ServiceEntry entry : pool) {
+            if (entry.getChannel() != null) {
+                entry.getChannel().close();
+                // The channel close will trigger onChannelDisconnect
+            }
         }
     }
 
+    /**
+     * All providers of a service (empty if it is not registered).
+     */
+    public List<ServiceEntry> getProviders(String name) {
+        List<ServiceEntry> pool = servicePools.get(name);
+        return pool != null ? new ArrayList<>(pool) : new ArrayList<>();
+    }
+
+    /**
+     * Check whether a channel is one of the providers of a service.
+     */
+    public boolean isProvider(String name, Channel channel) {
+        return name != null && name.equals(channelToService.get(channel));
+    }
+
     /**
      * Clear all services.
      */
     public void clear() {
-        for (ServiceEntry entry : services.values()) {
-            if (entry.getChannel() != null) {
-                entry.getChannel().close();
+        for (List<ServiceEntry> pool : servicePools.values()) {
+            for (ServiceEntry entry : pool) {
+                if (entry.getChannel() != null) {
+                    entry.getChannel().close();
+                }
             }
         }
         services.clear();
+        servicePools.clear();
         channelToService.clear();
         fileRegistry.clear();
         channelToFiles.clear();
+        hashedFiles.clear();
+        filesByHash.clear();
+        infoScopes.clear();
     }
 
     // ==================== File Registry Methods ====================
@@ -697,9 +996,12 @@ public class ServiceManager {
      * Register a file for relay sharing.
      */
     public void registerFile(String fileId, String filename, long size, String mimeType, 
-                            String ownerId, Channel ownerChannel) {
-        FileInfo info = new FileInfo(fileId, filename, size, mimeType, ownerId, ownerChannel);
+                            String ownerId, Channel ownerChannel, String contentHash) {
+        FileInfo info = new FileInfo(fileId, filename, size, mimeType, ownerId, ownerChannel, contentHash);
         fileRegistry.put(fileId, info);
+        if (contentHash != null) {
+            addFileSource(null, info);
+        }
         
         // Track files by channel for cleanup
         channelToFiles.computeIfAbsent(ownerChannel, k -> new ArrayList<>()).add(fileId);
@@ -710,13 +1012,24 @@ public class ServiceManager {
         broadcastFileList();
     }
 
+    /**
+     * Register a file hosted by the server itself (see BlobStore).
+     * It has no owner channel and stays registered until deleted.
+     */
+    public void registerStoredFile(FileInfo info) {
+        fileRegistry.put(info.getFileId(), info);
+        Log.i(TAG, "Stored file registered: " + info.getFilename() + " (" + info.getFileId() + ")");
+        broadcastFileList();
+    }
+
     /**
      * Unregister a file from relay sharing.
      */
     public void unregisterFile(String fileId) {
         FileInfo info = fileRegistry.remove(fileId);
+        revokeFile(fileId);
         if (info != null) {
-            List<String> files = channelToFiles.get(info.getOwnerChannel());
+            List<String> files = info.getOwnerChannel() != null ? channelToFiles.get(info.getOwnerChannel()) : null;
             if (files != null) {
                 files.remove(fileId);
             }
@@ -743,16 +1056,106 @@ public class ServiceManager {
      * Handle channel disconnect - clean up files owned by this channel.
      */
     private void cleanupFilesForChannel(Channel channel) {
+        for (FileInfo info : hashedFiles.values()) {
+            if (info.getOwnerChannel() == channel) {
+                revokeFile(info.getFileId());
+            }
+        }
+        
         List<String> files = channelToFiles.remove(channel);
         if (files != null && !files.isEmpty()) {
             for (String fileId : files) {
                 fileRegistry.remove(fileId);
+                revokeFile(fileId);
             }
             Log.i(TAG, "Cleaned up " + files.size() + " files for disconnected channel");
             broadcastFileList();
         }
     }
 
+    /**
+     * Index a file by content hash so identical copies can serve one download together.
+     * The scope (instance UUID, or null for registry files) keeps sources from
+     * different instances apart. An id already indexed for another owner channel
+     * is left alone, so one owner cannot take over another's file.
+     * @return false if the id belongs to another owner
+     */
+    public boolean addFileSource(String scope, FileInfo info) {
+        synchronized (hashedFiles) {
+            FileInfo existing = hashedFiles.get(info.getFileId());
+            if (existing != null && existing.getOwnerChannel() != info.getOwnerChannel()) {
+                Log.w(TAG, "Ignoring content hash for " + info.getFileId() + " from a different owner");
+                return false;
+            }
+            removeFileSource(info.getFileId());
+            String key = hashKey(scope, info.getContentHash());
+            hashedFiles.put(info.getFileId(), info);
+            filesByHash.compute(key, (k, list) -> {
+                List<FileInfo> updated = list != null ? new ArrayList<>(list) : new ArrayList<>();
+                updated.add(info);
+                return updated;
+            });
+            infoScopes.put(info.getFileId(), key);
+            return true;
+        }
+    }
+
+    /**
+     * Withdraw a file its owner no longer shares: drop it from the content index
+     * and from the relay cache, so it cannot be downloaded any more.
+     */
+    public void revokeFile(String fileId) {
+        removeFileSource(fileId);
+        BlobCache cache = blobCache;
+        if (cache != null) {
+            cache.purge(fileId);
+        }
+    }
+
+    /**
+     * Remove a file from the content index.
+     */
+    public void removeFileSource(String fileId) {
+        FileInfo info = hashedFiles.remove(fileId);
+        String key = infoScopes.remove(fileId);
+        if (info == null || key == null) {
+            return;
+        }
+        filesByHash.computeIfPresent(key, (k, list) -> {
+            List<FileInfo> updated = new ArrayList<>(list);
+            updated.remove(info);
+            return updated.isEmpty() ? null : updated;
+        });
+    }
+
+    /**
+     * Get every connected copy of a file (including the file itself) with the same
+     * content hash and size. Returns an empty list for files without a hash.
+     */
+    public List<FileInfo> getFileSources(String fileId) {
+        List<FileInfo> sources = new ArrayList<>();
+        FileInfo info = hashedFiles.get(fileId);
+        String key = infoScopes.get(fileId);
+        if (info == null || key == null) {
+            return sources;
+        }
+        List<FileInfo> copies = filesByHash.get(key);
+        if (copies == null) {
+            return sources;
+        }
+        for (FileInfo copy : copies) {
+            if (copy.getSize() == info.getSize() && copy.getOwnerChannel() != null
+                    && copy.getOwnerChannel().isActive()) {
+                sources.add(copy);
+            }
+        }
+        return sources;
+    }
+
+    private static String hashKey(String scope, String contentHash) {
+        return (scope != null ? scope : "") + "|" + contentHash;
+    }
+
     /**
      * Broadcast updated file list to all connected fileshare clients.
      */
@@ -768,21 +1171,13 @@ public class ServiceManager {
         payload.add("files", filesArray);
         message.setPayload(payload);
 
-        String json = message.toJson();
-
         // Send to all fileshare clients
-        for (ClientInfo client : clients.values()) {
-            if ("fileshare".equals(client.getClientType()) && client.getChannel().isActive()) {
-                client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
-            }
-        }
+        List<Channel> recipients = channelsOfType("fileshare");
 
         // Also send to any other channels that have registered files
-        for (Channel channel : channelToFiles.keySet()) {
-            if (channel.isActive()) {
-                channel.writeAndFlush(new TextWebSocketFrame(json));
-            }
-        }
+        recipients.addAll(channelToFiles.keySet());
+
+        Broadcaster.broadcast(message.toJson(), recipients);
     }
     
     // ==================== Client Registry Methods ====================
@@ -799,14 +1194,18 @@ public class ServiceManager {
      */
     public void registerClient(String userId, String clientType, String instanceUuid, Channel channel) {
         ClientInfo info = new ClientInfo(userId, clientType, instanceUuid, channel);
-        clients.put(userId, info);
+        unindexClient(clients.put(userId, info));
+        indexClient(info);
         channelToClient.put(channel, userId);
         
         // Add user to instance if specified
         if (instanceUuid != null) {
             ServiceInstance instance = instances.get(instanceUuid);
             if (instance != null) {
-                instance.addUser(userId);
+                runOnInstance(instance, () -> {
+                    instance.addUser(userId, channel);
+                    invalidateInstanceList(instance.getServiceName());
+                });
             }
         }
         
@@ -823,6 +1222,7 @@ public class ServiceManager {
     public void unregisterClient(String userId) {
         ClientInfo info = clients.remove(userId);
         if (info != null) {
+            unindexClient(info);
             channelToClient.remove(info.getChannel());
             Log.i(TAG, "Client unregistered: " + userId);
         }
@@ -839,13 +1239,34 @@ public class ServiceManager {
      * Get all clients of a specific type.
      */
     public List<ClientInfo> getClientsByType(String clientType) {
-        List<ClientInfo> result = new ArrayList<>();
-        for (ClientInfo client : clients.values()) {
-            if (clientType.equals(client.getClientType())) {
-                result.add(client);
+        Set<ClientInfo> ofType = clientsByType.get(clientType);
+        return ofType != null ? new ArrayList<>(ofType) : new ArrayList<>();
+    }
+    
+    private List<Channel> channelsOfType(String clientType) {
+        List<Channel> channels = new ArrayList<>();
+        Set<ClientInfo> ofType = clientsByType.get(clientType);
+        if (ofType != null) {
+            for (ClientInfo client : ofType) {
+                channels.add(client.getChannel());
+            }
+        }
+        return channels;
+    }
+    
+    private void indexClient(ClientInfo client) {
+        if (client.getClientType() != null) {
+            clientsByType.computeIfAbsent(client.getClientType(), k -> ConcurrentHashMap.newKeySet()).add(client);
+        }
+    }
+    
+    private void unindexClient(ClientInfo client) {
+        if (client != null && client.getClientType() != null) {
+            Set<ClientInfo> ofType = clientsByType.get(client.getClientType());
+            if (ofType != null) {
+                ofType.remove(client);
             }
         }
-        return result;
     }
     
     /**
@@ -859,6 +1280,44 @@ public class ServiceManager {
         return null;
     }
     
+    /**
+     * Send frame content to everyone in an instance except the sender, on the
+     * instance's event loop. Takes ownership of content.
+     * @return false (and content released) if there is no such instance
+     */
+    public boolean broadcastToInstance(String instanceUuid, ByteBuf content, Channel sender) {
+        ServiceInstance instance = instances.get(instanceUuid);
+        if (instance == null) {
+            content.release();
+            return false;
+        }
+        runOnInstance(instance, () -> instance.broadcast(content, sender));
+        return true;
+    }
+    
+    private void removeFromInstance(String instanceUuid, String userId, Channel channel) {
+        ServiceInstance instance = instances.get(instanceUuid);
+        if (instance != null) {
+            runOnInstance(instance, () -> {
+                instance.removeUser(userId, channel);
+                invalidateInstanceList(instance.getServiceName());
+            });
+        }
+    }
+    
+    /**
+     * Run a room operation on the instance's event loop: inline when already
+     * there, otherwise as a task, so operations on one room never overlap.
+     */
+    private static void runOnInstance(ServiceInstance instance, Runnable task) {
+        EventLoop loop = instance.getEventLoop();
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+    
     /**
      * Get all clients in a specific instance.
      */
@@ -900,8 +1359,14 @@ public class ServiceManager {
         }
         
         // Clean up
-        clients.remove(userId);
+        if (clients.remove(userId, client)) {
+            unindexClient(client);
+        }
+        purgeCachedFiles(userId);
         channelToClient.remove(client.getChannel());
+        if (client.getInstanceUuid() != null) {
+            removeFromInstance(client.getInstanceUuid(), userId, client.getChannel());
+        }
         
         // Also remove from chat users if applicable
         ChatUser chatUser = chatUsers.remove(userId);
@@ -921,14 +1386,13 @@ public class ServiceManager {
         String userId = channelToClient.remove(channel);
         if (userId != null) {
             ClientInfo client = clients.remove(userId);
+            unindexClient(client);
+            purgeCachedFiles(userId);
             Log.i(TAG, "Cleaned up client for disconnected channel: " + userId);
             
             // Remove from instance
             if (client != null && client.getInstanceUuid() != null) {
-                ServiceInstance instance = instances.get(client.getInstanceUuid());
-                if (instance != null) {
-                    instance.removeUser(userId);
-                }
+                removeFromInstance(client.getInstanceUuid(), userId, channel);
                 notifyInstanceOwner(client.getInstanceUuid(), client.getClientType(), "client_disconnected", userId);
             }
             
@@ -941,6 +1405,16 @@ public class ServiceManager {
         }
     }
     
+    /**
+     * Drop cached copies of the files a departing user shared.
+     */
+    private void purgeCachedFiles(String userId) {
+        BlobCache cache = blobCache;
+        if (cache != null) {
+            cache.purgeOwner(userId);
+        }
+    }
+    
     /**
      * Notify an instance owner when a client connects or disconnects.
      */
@@ -1010,14 +1484,7 @@ public class ServiceManager {
         payload.add("users", usersArray);
         message.setPayload(payload);
 
-        String json = message.toJson();
-
-        // Send to all chat clients
-        for (ClientInfo client : clients.values()) {
-            if ("chat".equals(client.getClientType()) && client.getChannel().isActive()) {
-                client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
-            }
-        }
+        Broadcaster.broadcast(message.toJson(), getChatChannels());
     }
     
     /**
@@ -1030,14 +1497,7 @@ public class ServiceManager {
         payload.addProperty("name", name);
         message.setPayload(payload);
 
-        String json = message.toJson();
-
-        // Send to all chat clients
-        for (ClientInfo client : clients.values()) {
-            if ("chat".equals(client.getClientType()) && client.getChannel().isActive()) {
-                client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
-            }
-        }
+        Broadcaster.broadcast(message.toJson(), getChatChannels());
     }
     
     /**
@@ -1050,14 +1510,7 @@ public class ServiceManager {
         payload.addProperty("name", name);
         message.setPayload(payload);
 
-        String json = message.toJson();
-
-        // Send to all chat clients
-        for (ClientInfo client : clients.values()) {
-            if ("chat".equals(client.getClientType()) && client.getChannel().isActive()) {
-                client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
-            }
-        }
+        Broadcaster.broadcast(message.toJson(), getChatChannels());
     }
     
     /**
@@ -1067,40 +1520,36 @@ public class ServiceManager {
         Message message = new Message(Message.TYPE_CHAT_MESSAGE);
         message.setPayload(msgPayload);
 
-        String json = message.toJson();
-        
         // Check if there are specific recipients
         JsonArray recipients = null;
         if (msgPayload.has("recipients") && !msgPayload.get("recipients").isJsonNull()) {
             recipients = msgPayload.getAsJsonArray("recipients");
         }
 
-        // Send to all chat clients (or specific recipients)
-        for (ClientInfo client : clients.values()) {
-            if (!"chat".equals(client.getClientType()) || !client.getChannel().isActive()) {
-                continue;
-            }
-            
-            // Don't send back to sender
-            if (client.getChannel() == senderChannel) {
-                continue;
-            }
-            
-            // If recipients specified, only send to them
-            if (recipients != null) {
-                boolean isRecipient = false;
-                for (int i = 0; i < recipients.size(); i++) {
-                    if (client.getUserId().equals(recipients.get(i).getAsString())) {
-                        isRecipient = true;
-                        break;
-                    }
+        // Send to all chat clients (or specific recipients), never back to the sender
+        List<Channel> channels = new ArrayList<>();
+        if (recipients != null) {
+            // Look each recipient up directly; a repeated id is still sent once
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < recipients.size(); i++) {
+                String userId = recipients.get(i).getAsString();
+                ClientInfo client = seen.add(userId) ? clients.get(userId) : null;
+                if (client != null && "chat".equals(client.getClientType())
+                        && client.getChannel() != senderChannel) {
+                    channels.add(client.getChannel());
                 }
-                if (!isRecipient) {
-                    continue;
+            }
+        } else {
+            for (Channel channel : channelsOfType("chat")) {
+                if (channel != senderChannel) {
+                    channels.add(channel);
                 }
             }
-            
-            client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
         }
+        Broadcaster.broadcast(message.toJson(), channels);
+    }
+
+    private List<Channel> getChatChannels() {
+        return channelsOfType("chat");
     }
 }
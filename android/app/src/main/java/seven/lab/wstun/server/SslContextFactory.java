@@ -26,8 +26,13 @@ import java.util.Date;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 
 /**
  * Factory for creating SSL context with self-signed certificates.
@@ -45,8 +50,30 @@ public class SslContextFactory {
 
     /**
      * Get or create SSL context with self-signed certificate.
+     * With http2, h2 is offered through ALPN when the platform supports it
+     * (Android 10 and later); clients otherwise fall back to HTTP/1.1.
      */
-    public static SslContext getSslContext(Context context) throws Exception {
+    public static SslContext getSslContext(Context context, boolean http2) throws Exception {
+        SslContextBuilder builder = SslContextBuilder.forServer(getKeyManagerFactory(context));
+        if (http2 && isAlpnSupported()) {
+            builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2,
+                    ApplicationProtocolNames.HTTP_1_1));
+        } else if (http2) {
+            Log.i(TAG, "ALPN not supported, HTTPS stays on HTTP/1.1");
+        }
+        return builder.build();
+    }
+
+    /**
+     * The server's key and self-signed certificate, generated on first use.
+     * Shared by the TCP and QUIC listeners.
+     */
+    public static KeyManagerFactory getKeyManagerFactory(Context context) throws Exception {
         File keystoreFile = new File(context.getFilesDir(), KEYSTORE_FILE);
         
         KeyStore keyStore;
@@ -61,8 +88,15 @@ public class SslContextFactory {
 
         KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
         kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        return kmf;
+    }
 
-        return SslContextBuilder.forServer(kmf).build();
+    private static boolean isAlpnSupported() {
+        try {
+            return SslProvider.isAlpnSupported(SslProvider.JDK);
+        } catch (Throwable t) {
+            return false;
+        }
     }
 
     /**
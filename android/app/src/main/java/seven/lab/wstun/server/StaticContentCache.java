@@ -0,0 +1,235 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Pre-encoded static content: libwstun.js, the /main and /service pages of
+ * installed services, and the static resources services register.
+ *
+ * Each asset is encoded once into a read-only direct buffer, with a gzip copy
+ * when that is noticeably smaller, a strong ETag and a Last-Modified time.
+ * Requests are answered with duplicates of those buffers, or 304 when a
+ * validator matches, so serving does not encode or copy. The buffers are never
+ * released (the garbage collector reclaims them once dropped), so a response in
+ * flight is unaffected by invalidation.
+ *
+ * Entries are keyed by request path. A service's entries are invalidated when
+ * the marketplace installs, updates, enables, disables or uninstalls it, and when
+ * it registers or its last provider goes away.
+ */
+public class StaticContentCache {
+
+    private static final String TAG = "StaticContentCache";
+
+    // The gzip copy is kept only if it saves at least this fraction
+    private static final double MIN_GZIP_SAVING = 0.1;
+
+    /**
+     * One encoded asset.
+     */
+    public static final class Entry {
+        private final ByteBuf body;
+        private final ByteBuf gzipBody;  // null if not worth keeping
+        private final String contentType;
+        private final String cacheControl;
+        private final String etag;
+        private final String gzipEtag;
+        private final long lastModified;  // Whole seconds, in milliseconds
+
+        private Entry(byte[] bytes, String contentType, String cacheControl) {
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.body = toDirect(bytes);
+            byte[] gzipped = gzip(bytes);
+            this.gzipBody = gzipped != null && gzipped.length <= bytes.length * (1 - MIN_GZIP_SAVING)
+                ? toDirect(gzipped) : null;
+            String hash = hash(bytes);
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gz\"";
+            this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+        }
+
+        public int size() {
+            return body.readableBytes() + (gzipBody != null ? gzipBody.readableBytes() : 0);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Bumped by every invalidation, so content loaded before it is not stored after it
+    private long generation;
+
+    /**
+     * The encoded asset for a path, loading and encoding it on first use.
+     * Returns null if the loader has no content.
+     */
+    public Entry get(String path, String contentType, String cacheControl, Supplier<String> loader) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        long loadedAt;
+        synchronized (this) {
+            loadedAt = generation;
+        }
+        String content = loader.get();
+        if (content == null) {
+            return null;
+        }
+        entry = new Entry(content.getBytes(StandardCharsets.UTF_8), contentType, cacheControl);
+        synchronized (this) {
+            if (loadedAt == generation) {
+                Entry raced = entries.putIfAbsent(path, entry);
+                if (raced != null) {
+                    return raced;
+                }
+                Log.d(TAG, "Cached " + path + " (" + entry.size() + " bytes)");
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Drop everything cached under a service's path.
+     */
+    public synchronized void invalidateService(String serviceName) {
+        generation++;
+        String prefix = "/" + serviceName + "/";
+        entries.keySet().removeIf(path -> path.startsWith(prefix));
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Answer a request from an entry: 304 if the client's validator matches,
+     * otherwise the gzip copy when the client accepts it, or the plain body.
+     */
+    public static void serve(ChannelHandlerContext ctx, HttpRequest request, Entry entry) {
+        boolean gzip = entry.gzipBody != null && acceptsGzip(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        String etag = gzip ? entry.gzipEtag : entry.etag;
+
+        FullHttpResponse response;
+        if (notModified(request, entry)) {
+            response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+        } else {
+            ByteBuf body = gzip ? entry.gzipBody : entry.body;
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.duplicate());
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, entry.contentType);
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+            if (gzip) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+            }
+        }
+        HttpHeaders headers = response.headers();
+        headers.set(HttpHeaderNames.ETAG, etag);
+        headers.set(HttpHeaderNames.LAST_MODIFIED, DateFormatter.format(new Date(entry.lastModified)));
+        if (entry.cacheControl != null) {
+            headers.set(HttpHeaderNames.CACHE_CONTROL, entry.cacheControl);
+        }
+        if (entry.gzipBody != null) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        HttpHandler.addStaticCorsHeaders(response);
+        // Already encoded as well as it will be
+        HttpCompressor.skipNextResponse(ctx.pipeline());
+        HttpHandler.writeResponse(ctx, request, response);
+    }
+
+    private static boolean notModified(HttpRequest request, Entry entry) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // Either encoding's tag identifies the same content
+            return ResponseCache.etagMatches(ifNoneMatch, entry.etag)
+                || ResponseCache.etagMatches(ifNoneMatch, entry.gzipEtag);
+        }
+        String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            return since != null && entry.lastModified <= since.getTime();
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static ByteBuf toDirect(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buffer).asReadOnly());
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "gzip failed: " + e.getMessage());
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
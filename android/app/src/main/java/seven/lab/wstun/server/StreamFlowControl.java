@@ -0,0 +1,145 @@
+package seven.lab.wstun.server;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import seven.lab.wstun.protocol.Message;
+
+/**
+ * Windowed credit flow control for streamed relay responses.
+ *
+ * When a producer starts a streamed response (http_response_start) it is granted
+ * INITIAL_CREDIT chunks. Each chunk forwarded to the HTTP client consumes one credit.
+ * A credit is handed back with an http_credit message only after the chunk has been
+ * written to the client's socket and the HTTP channel is writable; while the client
+ * is above the write buffer high water mark, returned credits are held back and
+ * released from channelWritabilityChanged. A producer that honors credits therefore
+ * never has more than INITIAL_CREDIT chunks buffered in the server per transfer.
+ *
+ * Streams feeding a ResponseSink (shared downloads, swarm segments) are not gated
+ * on a single HTTP channel; credit follows the sink's write futures instead. The
+ * per-request state lives on the PendingRequest, so several streams may feed one
+ * HTTP channel at once.
+ */
+public class StreamFlowControl {
+
+    // Chunks a producer may have in flight per request
+    public static final int INITIAL_CREDIT = 16;
+    // Returned credits are batched to keep http_credit traffic low
+    private static final int GRANT_BATCH = 4;
+
+    private static final AttributeKey<Stream> STREAM_KEY = AttributeKey.valueOf("wstun.stream");
+
+    /**
+     * Per-request credit state. Gated streams are also attached to their HTTP channel.
+     */
+    static final class Stream {
+        private final long requestId;
+        private final Channel producer;
+        private final boolean gated;
+        private final AtomicInteger returned = new AtomicInteger();
+
+        Stream(long requestId, Channel producer, boolean gated) {
+            this.requestId = requestId;
+            this.producer = producer;
+            this.gated = gated;
+        }
+    }
+
+    /**
+     * Start flow control for a streamed response and send the initial grant.
+     */
+    public static void start(PendingRequest pending, Channel producer) {
+        start(pending, producer, true);
+    }
+
+    /**
+     * Start flow control for a stream that feeds a ResponseSink.
+     */
+    public static void startShared(PendingRequest pending, Channel producer) {
+        start(pending, producer, false);
+    }
+
+    private static void start(PendingRequest pending, Channel producer, boolean gated) {
+        Stream stream = new Stream(pending.getRequestId(), producer, gated);
+        pending.setFlowStream(stream);
+        if (gated) {
+            pending.getCtx().channel().attr(STREAM_KEY).set(stream);
+        }
+        sendCredit(stream, INITIAL_CREDIT);
+    }
+
+    /**
+     * Account for a chunk written to the HTTP client.
+     */
+    public static void onChunkWritten(PendingRequest pending, Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        Channel httpChannel = pending.getCtx().channel();
+        Stream stream = pending.getFlowStream();
+        if (stream == null) {
+            return;
+        }
+        future.addListener(f -> {
+            if (!f.isSuccess()) {
+                return;
+            }
+            stream.returned.incrementAndGet();
+            if (!stream.gated || httpChannel.isWritable()) {
+                grant(stream, GRANT_BATCH);
+            }
+        });
+    }
+
+    /**
+     * Release held-back credit once the HTTP client has drained below the low water mark.
+     */
+    public static void onWritabilityChanged(Channel httpChannel) {
+        if (!httpChannel.isWritable()) {
+            return;
+        }
+        Stream stream = httpChannel.attr(STREAM_KEY).get();
+        if (stream != null && stream.gated) {
+            grant(stream, 1);
+        }
+    }
+
+    /**
+     * Stop flow control for a finished stream.
+     */
+    public static void finish(PendingRequest pending) {
+        Stream stream = pending.getFlowStream();
+        pending.setFlowStream(null);
+        if (stream != null && stream.gated) {
+            pending.getCtx().channel().attr(STREAM_KEY).compareAndSet(stream, null);
+        }
+    }
+
+    private static void grant(Stream stream, int minimum) {
+        if (stream.returned.get() < minimum) {
+            return;
+        }
+        int credit = stream.returned.getAndSet(0);
+        if (credit > 0) {
+            sendCredit(stream, credit);
+        }
+    }
+
+    private static void sendCredit(Stream stream, int credit) {
+        if (!stream.producer.isActive()) {
+            return;
+        }
+        Message message = new Message(Message.TYPE_HTTP_CREDIT);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("request_id", String.valueOf(stream.requestId));
+        payload.addProperty("credit", credit);
+        message.setPayload(payload);
+        stream.producer.writeAndFlush(new TextWebSocketFrame(message.toJson()));
+    }
+}
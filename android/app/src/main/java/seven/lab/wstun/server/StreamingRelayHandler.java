@@ -0,0 +1,235 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import seven.lab.wstun.config.ServerConfig;
+import seven.lab.wstun.protocol.HttpRelayRequest;
+import seven.lab.wstun.protocol.Message;
+import seven.lab.wstun.protocol.RelayFrame;
+
+/**
+ * Streams request bodies for relayed services without aggregation.
+ *
+ * Sits in front of the HttpObjectAggregator. Requests with a body that target a
+ * registered service with "stream_requests" enabled are relayed as an http_request
+ * (with "streaming": true) followed by one http_request_chunk per HttpContent.
+ * Everything else is passed through unchanged to be aggregated as before.
+ *
+ * Flow control: when the service channel stops being writable, reading from the
+ * HTTP client is paused until the pending write completes, so an upload of any
+ * size is held in bounded memory.
+ */
+public class StreamingRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static final String TAG = "StreamingRelayHandler";
+
+    private final ServiceManager serviceManager;
+    private final RequestManager requestManager;
+    private final LocalServiceManager localServiceManager;
+    private final ServerConfig serverConfig;
+
+    // State of the request body currently being streamed (null when passing through)
+    private String requestId;
+    private PendingRequest pending;
+    private Channel serviceChannel;
+    private boolean binary;
+
+    public StreamingRelayHandler(ServiceManager serviceManager, RequestManager requestManager,
+                                 LocalServiceManager localServiceManager, ServerConfig serverConfig) {
+        this.serviceManager = serviceManager;
+        this.requestManager = requestManager;
+        this.localServiceManager = localServiceManager;
+        this.serverConfig = serverConfig;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            ServiceManager.ServiceEntry service = getStreamingTarget(request);
+            if (service != null) {
+                startStream(ctx, request, service);
+                if (msg instanceof HttpContent) {
+                    forwardContent(ctx, (HttpContent) msg);
+                } else {
+                    ReferenceCountUtil.release(msg);
+                }
+                return;
+            }
+        } else if (msg instanceof HttpContent && requestId != null) {
+            forwardContent(ctx, (HttpContent) msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Return the service to stream this request to, or null to aggregate it as usual.
+     * Mirrors the routing in HttpHandler.handleHttpRequest for relayed services.
+     */
+    private ServiceManager.ServiceEntry getStreamingTarget(HttpRequest request) {
+        if (request.method() == HttpMethod.OPTIONS || request.method() == HttpMethod.GET) {
+            return null;
+        }
+        if ("websocket".equalsIgnoreCase(request.headers().get(HttpHeaderNames.UPGRADE))) {
+            return null;
+        }
+        if (HttpUtil.getContentLength(request, -1L) <= 0 && !HttpUtil.isTransferEncodingChunked(request)) {
+            return null;
+        }
+
+        String path = new QueryStringDecoder(request.uri()).path();
+        String[] pathParts = path.split("/");
+        if (pathParts.length < 2 || "_api".equals(pathParts[1])) {
+            return null;
+        }
+        String serviceName = pathParts[1];
+
+        // Local service pages and fileshare downloads are handled by HttpHandler
+        String subPath = pathParts.length > 2 ? pathParts[2] : "";
+        if (localServiceManager != null && localServiceManager.getInstalledService(serviceName) != null
+                && ("service".equals(subPath) || "main".equals(subPath))) {
+            return null;
+        }
+        if ("fileshare".equals(serviceName) && "download".equals(subPath)) {
+            return null;
+        }
+
+        ServiceManager.ServiceEntry service = serviceManager.getService(serviceName);
+        if (service == null) {
+            return null;
+        }
+        if (!HttpHandler.validateServerAuth(serverConfig, request)) {
+            return null;
+        }
+        // Pool members register separately, so the provider that will get the request must have opted in
+        ServiceManager.ServiceEntry provider = serviceManager.pickProvider(serviceName, request);
+        if (provider == null) {
+            provider = service;
+        }
+        return provider.getRegistration().isStreamRequests() ? provider : null;
+    }
+
+    private void startStream(ChannelHandlerContext ctx, HttpRequest request, ServiceManager.ServiceEntry service) {
+        Channel channel = service.getChannel();
+        PendingRequest created = new PendingRequest(requestManager.nextRequestId(), ctx, request, service.getName());
+        String id = created.getWireId();
+        String path = new QueryStringDecoder(request.uri()).path();
+
+        if (channel == null || !channel.isActive()) {
+            // Drop the body; HttpHandler is not involved so answer here
+            requestId = id;
+            pending = null;
+            serviceChannel = null;
+            sendServiceUnavailable(ctx);
+            return;
+        }
+
+        HttpRelayRequest relayRequest = HttpHandler.buildRelayRequest(id, request, path);
+        relayRequest.setStreaming(true);
+
+        created.setProvider(service);
+        requestId = id;
+        pending = created;
+        serviceChannel = channel;
+        binary = service.getRegistration().isBinaryRelay();
+
+        // The first-byte timeout counts from the last upload chunk, so slow uploads are not cut off
+        requestManager.addPendingRequest(created, service.getRegistration().getFirstByteTimeoutMs(),
+            service.getRegistration().getIdleTimeoutMs());
+
+        if (HttpUtil.is100ContinueExpected(request)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+
+        Message message = new Message(Message.TYPE_HTTP_REQUEST, service.getName());
+        message.setPayload(Message.toPayload(relayRequest));
+        channel.writeAndFlush(new TextWebSocketFrame(message.toJson()));
+        Log.d(TAG, "Streaming request body to service " + service.getName() + ": " + id);
+    }
+
+    private void forwardContent(ChannelHandlerContext ctx, HttpContent content) {
+        boolean last = content instanceof LastHttpContent;
+        try {
+            if (serviceChannel == null || !serviceChannel.isActive()) {
+                // Service went away; RequestManager answers the HTTP client
+                return;
+            }
+            pending.touch();
+
+            ChannelFuture future;
+            if (binary) {
+                ByteBuf frame = RelayFrame.encode(serviceChannel.alloc(), RelayFrame.OP_REQUEST_CHUNK,
+                    last ? RelayFrame.FLAG_FIN : 0, requestId, content.content().retainedDuplicate());
+                future = serviceChannel.writeAndFlush(new BinaryWebSocketFrame(frame));
+            } else {
+                Message message = new Message(Message.TYPE_HTTP_REQUEST_CHUNK);
+                JsonObject payload = new JsonObject();
+                payload.addProperty("request_id", requestId);
+                if (content.content().isReadable()) {
+                    payload.addProperty("chunk_base64", HttpHandler.encodeBase64(content.content()));
+                }
+                payload.addProperty("done", last);
+                message.setPayload(payload);
+                future = serviceChannel.writeAndFlush(new TextWebSocketFrame(
+                    ByteBufUtil.writeUtf8(serviceChannel.alloc(), message.toJson())));
+            }
+
+            // Pause the upload while the service channel is backed up
+            if (!serviceChannel.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+                future.addListener(f -> ctx.channel().config().setAutoRead(true));
+            }
+        } finally {
+            content.release();
+            if (last) {
+                requestId = null;
+                pending = null;
+                serviceChannel = null;
+            }
+        }
+    }
+
+    private void sendServiceUnavailable(ChannelHandlerContext ctx) {
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.SERVICE_UNAVAILABLE,
+            HttpHandler.SERVICE_UNAVAILABLE_BODY.duplicate()
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, HttpHandler.SERVICE_UNAVAILABLE_BODY.readableBytes());
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        requestId = null;
+        pending = null;
+        serviceChannel = null;
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,432 @@
+package seven.lab.wstun.server;
+
+import android.util.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import seven.lab.wstun.protocol.HttpRelayResponse;
+import seven.lab.wstun.protocol.Message;
+
+/**
+ * A download fetched from several owners of the same content at once.
+ *
+ * The requested byte range is split into SEGMENT_SIZE segments. Each source (a
+ * connected copy of the file with the same content hash, see
+ * ServiceManager.getFileSources) fetches one segment at a time with a ranged
+ * file_request. Segments are written to the HTTP client strictly in order: the
+ * segment at the write position streams straight through, and later segments
+ * are buffered until it is their turn. Sources are kept at most
+ * SEGMENTS_AHEAD_PER_SOURCE segments ahead of the write position, so buffering
+ * stays bounded however fast one source is.
+ *
+ * A segment that fails before any of it reached the client is fetched again from
+ * another source. The failing source is not used again.
+ *
+ * Sources are matched only by the hash their owners claim, so the bytes are
+ * checked against it: every segment goes through a SHA-256 digest as it is
+ * written, and the last segment is held back until the digest matches. On a
+ * mismatch the client gets a failed response rather than a corrupt file, and the
+ * copies are dropped from the content index so the next attempt goes to the
+ * file's own owner. Only downloads of the whole file can be checked, so only
+ * those are swarmed (see canVerify).
+ */
+public class SwarmDownload {
+
+    private static final String TAG = "SwarmDownload";
+
+    static final long SEGMENT_SIZE = 1024 * 1024;
+    private static final int SEGMENTS_AHEAD_PER_SOURCE = 2;
+    private static final String HASH_PREFIX = "sha256:";
+
+    private final ChannelHandlerContext ctx;
+    private final HttpRequest request;
+    private final RequestManager requestManager;
+    private final ServiceManager serviceManager;
+    private final List<ServiceManager.FileInfo> allSources;
+    private final List<ServiceManager.FileInfo> sources;
+    private final String contentHash;
+    private final MessageDigest digest;
+    private final Set<ServiceManager.FileInfo> busy = new HashSet<>();
+    private final long size;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final boolean partial;
+
+    private final Segment[] segments;
+    private final Deque<Segment> retry = new ArrayDeque<>();
+    private int nextSegment;   // next segment not yet fetched
+    private int writeIndex;    // segment currently being written to the client
+    private boolean headSent;
+    private boolean finished;
+
+    /**
+     * One SEGMENT_SIZE slice of the download.
+     */
+    private static final class Segment {
+        private final int index;
+        private final long offset;
+        private final long length;
+        private final List<ByteBuf> buffered = new ArrayList<>();
+        private Fetch fetch;
+        private long received;
+        private boolean written;  // some bytes already went to the client
+        private boolean done;
+
+        Segment(int index, long offset, long length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Whether a download of rangeStart..rangeEnd of content with this hash can be
+     * checked (the whole file, with a hash in WSTun.hashBlob's format).
+     */
+    public static boolean canVerify(String contentHash, long size, long rangeStart, long rangeEnd) {
+        return contentHash != null && contentHash.regionMatches(true, 0, HASH_PREFIX, 0, HASH_PREFIX.length())
+            && rangeStart == 0 && rangeEnd == size - 1;
+    }
+
+    public SwarmDownload(ChannelHandlerContext ctx, HttpRequest request, RequestManager requestManager,
+                         ServiceManager serviceManager, List<ServiceManager.FileInfo> sources, long size,
+                         long rangeStart, long rangeEnd, boolean partial) {
+        this.ctx = ctx;
+        this.request = request;
+        this.requestManager = requestManager;
+        this.serviceManager = serviceManager;
+        this.allSources = new ArrayList<>(sources);
+        this.sources = new ArrayList<>(sources);
+        this.contentHash = sources.get(0).getContentHash();
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.size = size;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.partial = partial;
+        long total = rangeEnd - rangeStart + 1;
+        this.segments = new Segment[(int) ((total + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+    }
+
+    public synchronized void start() {
+        ctx.channel().closeFuture().addListener(f -> abort());
+        Log.d(TAG, "Swarm download of " + segments.length + " segments from " + sources.size() + " sources");
+        assignIdleSources();
+    }
+
+    /**
+     * A ranged file_request for one segment from one source.
+     */
+    private class Fetch implements ResponseSink {
+        private final Segment segment;
+        private final ServiceManager.FileInfo source;
+        private final long requestId;
+
+        Fetch(Segment segment, ServiceManager.FileInfo source) {
+            this.segment = segment;
+            this.source = source;
+            this.requestId = requestManager.nextRequestId();
+        }
+
+        void send() {
+            PendingRequest pending = new PendingRequest(requestId, ctx, request, "fileshare");
+            pending.setSink(this);
+            pending.setProducer(source.getOwnerChannel());
+            requestManager.addPendingRequest(pending);
+
+            JsonObject range = new JsonObject();
+            range.addProperty("offset", segment.offset);
+            range.addProperty("length", segment.length);
+            JsonArray ranges = new JsonArray();
+            ranges.add(range);
+
+            Message message = new Message(Message.TYPE_FILE_REQUEST);
+            JsonObject payload = new JsonObject();
+            payload.addProperty("requestId", pending.getWireId());
+            payload.addProperty("fileId", source.getFileId());
+            payload.add("ranges", ranges);
+            message.setPayload(payload);
+            source.getOwnerChannel().writeAndFlush(new TextWebSocketFrame(message.toJson()));
+        }
+
+        private boolean isCurrent() {
+            return !finished && segment.fetch == this;
+        }
+
+        @Override
+        public void start(int status, JsonObject headers) {
+            synchronized (SwarmDownload.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                if (status != HttpResponseStatus.PARTIAL_CONTENT.code()) {
+                    failFetch(this, "unexpected status " + status);
+                    return;
+                }
+                if (!headSent) {
+                    sendHead(headers);
+                }
+            }
+        }
+
+        @Override
+        public Future<Void> chunk(ByteBuf data) {
+            synchronized (SwarmDownload.this) {
+                if (!isCurrent() || segment.received + data.readableBytes() > segment.length) {
+                    data.release();
+                    return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+                }
+                segment.received += data.readableBytes();
+                if (segment.index == writeIndex && !isLast(segment)) {
+                    ChannelFuture future = write(segment, data);
+                    if (future != null) {
+                        return future;
+                    }
+                    return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+                }
+                // Not this segment's turn yet, or the last one, held until verified; bounded by SEGMENT_SIZE
+                segment.buffered.add(data);
+                return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+            }
+        }
+
+        @Override
+        public void end() {
+            synchronized (SwarmDownload.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                if (segment.received != segment.length) {
+                    failFetch(this, "short segment");
+                    return;
+                }
+                segment.done = true;
+                segment.fetch = null;
+                busy.remove(source);
+                drain();
+                assignIdleSources();
+            }
+        }
+
+        @Override
+        public void complete(HttpRelayResponse response, ByteBuf body) {
+            if (body != null) {
+                body.release();
+            }
+            synchronized (SwarmDownload.this) {
+                if (isCurrent()) {
+                    failFetch(this, "unexpected response " + response.getStatus());
+                }
+            }
+        }
+
+        @Override
+        public void fail(HttpResponseStatus status, String message) {
+            synchronized (SwarmDownload.this) {
+                if (isCurrent()) {
+                    failFetch(this, message);
+                }
+            }
+        }
+    }
+
+    private void sendHead(JsonObject sourceHeaders) {
+        // Validators and framing differ per source; the rest (type, disposition) is shared
+        JsonObject headers = new JsonObject();
+        if (sourceHeaders != null) {
+            for (String key : sourceHeaders.keySet()) {
+                if (!key.equalsIgnoreCase("Content-Length") && !key.equalsIgnoreCase("Content-Range")
+                        && !key.equalsIgnoreCase("ETag") && !key.equalsIgnoreCase("Last-Modified")) {
+                    headers.add(key, sourceHeaders.get(key));
+                }
+            }
+        }
+        headers.addProperty("Content-Length", String.valueOf(rangeEnd - rangeStart + 1));
+        headers.addProperty("Accept-Ranges", "bytes");
+        if (partial) {
+            headers.addProperty("Content-Range", "bytes " + rangeStart + "-" + rangeEnd + "/" + size);
+        }
+        int status = partial ? HttpResponseStatus.PARTIAL_CONTENT.code() : HttpResponseStatus.OK.code();
+        HttpHandler.startStreamingResponse(ctx, request, "swarm", status, headers);
+        headSent = true;
+    }
+
+    /**
+     * Write out every segment that is ready, in order, and finish when all are written.
+     */
+    private void drain() {
+        while (writeIndex < segments.length && segments[writeIndex] != null) {
+            Segment segment = segments[writeIndex];
+            if (isLast(segment)) {
+                if (!segment.done) {
+                    return;
+                }
+                for (ByteBuf data : segment.buffered) {
+                    update(data);
+                }
+                if (!verified()) {
+                    return;
+                }
+            }
+            for (ByteBuf data : segment.buffered) {
+                write(segment, data);
+            }
+            segment.buffered.clear();
+            if (!segment.done) {
+                return;
+            }
+            segments[writeIndex] = null;
+            writeIndex++;
+        }
+        if (writeIndex == segments.length) {
+            finished = true;
+            HttpHandler.endStreamingResponse(ctx, request);
+            Log.d(TAG, "Swarm download complete");
+        }
+    }
+
+    private boolean isLast(Segment segment) {
+        return segment.index == segments.length - 1;
+    }
+
+    /**
+     * Send a segment's bytes to the client. Takes ownership of data.
+     */
+    private ChannelFuture write(Segment segment, ByteBuf data) {
+        // The last segment was digested before it was verified
+        if (!isLast(segment)) {
+            update(data);
+        }
+        segment.written = true;
+        return HttpHandler.sendStreamingChunk(ctx, data);
+    }
+
+    private void update(ByteBuf data) {
+        for (ByteBuffer buffer : data.nioBuffers()) {
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * Compare the digest of the whole download with the claimed hash. On a
+     * mismatch the download fails and the copies are dropped from the content index.
+     */
+    private boolean verified() {
+        StringBuilder hex = new StringBuilder(HASH_PREFIX);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        if (hex.toString().equalsIgnoreCase(contentHash)) {
+            return true;
+        }
+        Log.w(TAG, "Swarm download does not match " + contentHash + "; dropping its " + allSources.size() + " sources");
+        for (ServiceManager.FileInfo source : allSources) {
+            serviceManager.removeFileSource(source.getFileId());
+        }
+        abortWith("content hash mismatch");
+        return false;
+    }
+
+    private void assignIdleSources() {
+        for (ServiceManager.FileInfo source : new ArrayList<>(sources)) {
+            if (finished) {
+                return;
+            }
+            if (busy.contains(source)) {
+                continue;
+            }
+            if (!source.getOwnerChannel().isActive()) {
+                sources.remove(source);
+                continue;
+            }
+            Segment segment = retry.poll();
+            if (segment == null) {
+                if (nextSegment >= segments.length
+                        || nextSegment - writeIndex >= SEGMENTS_AHEAD_PER_SOURCE * sources.size()) {
+                    return;
+                }
+                long offset = rangeStart + nextSegment * SEGMENT_SIZE;
+                segment = new Segment(nextSegment, offset, Math.min(SEGMENT_SIZE, rangeEnd + 1 - offset));
+                segments[nextSegment++] = segment;
+            }
+            Fetch fetch = new Fetch(segment, source);
+            segment.fetch = fetch;
+            busy.add(source);
+            fetch.send();
+        }
+    }
+
+    private void failFetch(Fetch fetch, String reason) {
+        Segment segment = fetch.segment;
+        Log.w(TAG, "Segment " + segment.index + " failed from " + fetch.source.getOwnerId() + ": " + reason);
+        // The source may still be sending; it is not used again either way
+        requestManager.cancelRequest(fetch.requestId);
+        busy.remove(fetch.source);
+        sources.remove(fetch.source);
+        segment.fetch = null;
+
+        if (segment.written || sources.isEmpty()) {
+            // Part of it already reached the client, or nobody is left to ask
+            abortWith(reason);
+            return;
+        }
+        for (ByteBuf data : segment.buffered) {
+            data.release();
+        }
+        segment.buffered.clear();
+        segment.received = 0;
+        retry.addFirst(segment);
+        assignIdleSources();
+    }
+
+    private void abortWith(String reason) {
+        HttpHandler.sendErrorResponse(ctx, request, headSent, HttpResponseStatus.BAD_GATEWAY,
+            "Download failed: " + reason);
+        abort();
+    }
+
+    /**
+     * Stop fetching and drop buffered data (client gone or download failed).
+     */
+    private synchronized void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Segment segment : segments) {
+            if (segment == null) {
+                continue;
+            }
+            if (segment.fetch != null) {
+                requestManager.cancelRequest(segment.fetch.requestId);
+                segment.fetch = null;
+            }
+            for (ByteBuf data : segment.buffered) {
+                data.release();
+            }
+            segment.buffered.clear();
+        }
+    }
+}
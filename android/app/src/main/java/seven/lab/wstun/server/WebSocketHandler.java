@@ -3,17 +3,20 @@ package seven.lab.wstun.server;
 import android.util.Log;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import seven.lab.wstun.config.ServerConfig;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
@@ -21,7 +24,10 @@ import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import seven.lab.wstun.protocol.HttpRelayResponse;
+import seven.lab.wstun.protocol.HttpResponseChunk;
+import seven.lab.wstun.protocol.HttpResponseStart;
 import seven.lab.wstun.protocol.Message;
+import seven.lab.wstun.protocol.RelayFrame;
 import seven.lab.wstun.protocol.ServiceRegistration;
 
 /**
@@ -54,10 +60,9 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
     }
 
     private void handleTextFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
-        String text = frame.text();
-
         try {
-            Message message = Message.fromJson(text);
+            // The payload is read lazily from the frame, which stays valid while it is handled
+            Message message = Message.decode(frame.content());
             handleMessage(ctx, message);
         } catch (Exception e) {
             Log.e(TAG, "Failed to parse message", e);
@@ -66,18 +71,94 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
     }
 
     private void handleBinaryFrame(ChannelHandlerContext ctx, BinaryWebSocketFrame frame) {
-        ByteBuf content = frame.content();
-        // Binary frames are used for file data streaming
-        // First byte is message type, rest is data
-        if (content.readableBytes() < 1) {
+        // Binary frames carry relayed HTTP bodies without base64 (see RelayFrame)
+        RelayFrame relayFrame = RelayFrame.decode(frame.content());
+        if (relayFrame == null) {
+            Log.w(TAG, "Malformed binary relay frame");
             return;
         }
 
-        byte type = content.readByte();
-        byte[] data = new byte[content.readableBytes()];
-        content.readBytes(data);
+        switch (relayFrame.getOpcode()) {
+            case RelayFrame.OP_RESPONSE_BODY:
+                handleBinaryResponseBody(ctx, relayFrame);
+                break;
+            case RelayFrame.OP_RESPONSE_CHUNK:
+                handleBinaryResponseChunk(ctx, relayFrame);
+                break;
+            default:
+                Log.w(TAG, "Unknown binary relay opcode: " + relayFrame.getOpcode());
+        }
+    }
+
+    /**
+     * Handle the body of an http_response that was sent with "binary": true.
+     */
+    private void handleBinaryResponseBody(ChannelHandlerContext ctx, RelayFrame relayFrame) {
+        String requestId = relayFrame.getRequestId();
+        PendingRequest pending = requestManager.removePendingRequest(requestId, ctx.channel());
+        if (pending == null) {
+            Log.w(TAG, "No pending request for binary response: " + requestId);
+            return;
+        }
 
-        // Binary data is handled silently for performance
+        HttpRelayResponse response = pending.getRelayResponse();
+        if (response == null) {
+            // Body arrived without headers; treat as a plain 200
+            response = new HttpRelayResponse();
+            response.setRequestId(requestId);
+            response.setStatus(200);
+        }
+        if (pending.getSink() != null) {
+            pending.getSink().complete(response, relayFrame.getData().retain());
+        } else {
+            HttpHandler.sendRelayResponse(pending.getCtx(), pending.getRequest(), response, relayFrame.getData().retain());
+        }
+    }
+
+    /**
+     * Handle a binary streaming chunk (binary counterpart of http_response_chunk).
+     */
+    private void handleBinaryResponseChunk(ChannelHandlerContext ctx, RelayFrame relayFrame) {
+        String requestId = relayFrame.getRequestId();
+        boolean done = relayFrame.isFin();
+
+        PendingRequest pending = done ?
+            requestManager.removePendingRequest(requestId, ctx.channel()) :
+            requestManager.getPendingRequest(requestId, ctx.channel());
+
+        if (pending == null) {
+            Log.w(TAG, "No pending request for binary chunk: " + requestId);
+            return;
+        }
+
+        if (relayFrame.getData().isReadable()) {
+            sendChunk(pending, relayFrame.getData().retain());
+        }
+        if (done) {
+            endStream(pending);
+        }
+    }
+
+    /**
+     * Forward a streamed chunk to the HTTP client, or to every client sharing the download.
+     * Takes ownership of data.
+     */
+    private void sendChunk(PendingRequest pending, ByteBuf data) {
+        pending.touch();
+        if (pending.getSink() != null) {
+            StreamFlowControl.onChunkWritten(pending, pending.getSink().chunk(data));
+        } else {
+            StreamFlowControl.onChunkWritten(pending, HttpHandler.sendStreamingChunk(pending.getCtx(), data));
+        }
+    }
+
+    private void endStream(PendingRequest pending) {
+        StreamFlowControl.finish(pending);
+        if (pending.getSink() != null) {
+            pending.getSink().end();
+        } else {
+            HttpHandler.endStreamingResponse(pending.getCtx(), pending.getRequest());
+        }
     }
 
     private void handleMessage(ChannelHandlerContext ctx, Message message) {
@@ -102,6 +183,9 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
             case Message.TYPE_HTTP_RESPONSE_CHUNK:
                 handleHttpResponseChunk(ctx, message);
                 break;
+            case Message.TYPE_CACHE_PURGE:
+                handleCachePurge(ctx, message);
+                break;
             case Message.TYPE_FILE_REGISTER:
                 handleFileRegister(ctx, message);
                 break;
@@ -157,10 +241,7 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
 
     private void handleRegister(ChannelHandlerContext ctx, Message message) {
         try {
-            ServiceRegistration registration = Message.payloadAs(
-                message.getPayload(), 
-                ServiceRegistration.class
-            );
+            ServiceRegistration registration = message.readPayload(ServiceRegistration.class);
 
             boolean success = serviceManager.registerService(registration, ctx.channel());
             
@@ -182,7 +263,7 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
     private void handleUnregister(ChannelHandlerContext ctx, Message message) {
         String serviceName = message.getService();
         if (serviceName != null) {
-            serviceManager.unregisterService(serviceName);
+            serviceManager.unregisterService(serviceName, ctx.channel());
         }
         
         Message ack = new Message(Message.TYPE_ACK);
@@ -192,14 +273,25 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
 
     private void handleHttpResponse(ChannelHandlerContext ctx, Message message) {
         try {
-            HttpRelayResponse response = Message.payloadAs(
-                message.getPayload(),
-                HttpRelayResponse.class
-            );
+            HttpRelayResponse response = message.readPayload(HttpRelayResponse.class);
+
+            if (message.isBinary()) {
+                // Body follows in an OP_RESPONSE_BODY frame
+                PendingRequest pending = requestManager.getPendingRequest(response.getRequestId(), ctx.channel());
+                if (pending != null) {
+                    pending.setRelayResponse(response);
+                    pending.touch();
+                } else {
+                    Log.w(TAG, "No pending request for: " + response.getRequestId());
+                }
+                return;
+            }
 
-            PendingRequest pending = requestManager.removePendingRequest(response.getRequestId());
-            if (pending != null) {
-                HttpHandler.sendRelayResponse(pending.getCtx(), response);
+            PendingRequest pending = requestManager.removePendingRequest(response.getRequestId(), ctx.channel());
+            if (pending != null && pending.getSink() != null) {
+                pending.getSink().complete(response, null);
+            } else if (pending != null) {
+                HttpHandler.sendRelayResponse(pending.getCtx(), pending.getRequest(), response);
             } else {
                 Log.w(TAG, "No pending request for: " + response.getRequestId());
             }
@@ -225,14 +317,22 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
      */
     private void handleHttpResponseStart(ChannelHandlerContext ctx, Message message) {
         try {
-            JsonObject payload = message.getPayload();
-            String requestId = payload.get("request_id").getAsString();
-            int status = payload.get("status").getAsInt();
-            JsonObject headers = payload.getAsJsonObject("headers");
-
-            PendingRequest pending = requestManager.getPendingRequest(requestId);
-            if (pending != null) {
-                HttpHandler.startStreamingResponse(pending.getCtx(), requestId, status, headers);
+            HttpResponseStart start = message.readPayload(HttpResponseStart.class);
+            String requestId = start.getRequestId();
+            int status = start.getStatus();
+            JsonObject headers = start.getHeaders();
+
+            PendingRequest pending = requestManager.getPendingRequest(requestId, ctx.channel());
+            if (pending != null && pending.getSink() != null) {
+                pending.getSink().start(status, headers);
+                pending.setResponseStarted(true);
+                pending.touch();
+                StreamFlowControl.startShared(pending, ctx.channel());
+            } else if (pending != null) {
+                HttpHandler.startStreamingResponse(pending.getCtx(), pending.getRequest(), requestId, status, headers);
+                pending.setResponseStarted(true);
+                pending.touch();
+                StreamFlowControl.start(pending, ctx.channel());
             } else {
                 Log.w(TAG, "No pending request for streaming start: " + requestId);
             }
@@ -246,28 +346,35 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
      */
     private void handleHttpResponseChunk(ChannelHandlerContext ctx, Message message) {
         try {
-            JsonObject payload = message.getPayload();
-            String requestId = payload.get("request_id").getAsString();
-            boolean done = payload.has("done") && payload.get("done").getAsBoolean();
-            
-            String chunkBase64 = payload.has("chunk_base64") ? 
-                payload.get("chunk_base64").getAsString() : null;
-            String error = payload.has("error") ? 
-                payload.get("error").getAsString() : null;
+            HttpResponseChunk chunk = message.readPayload(HttpResponseChunk.class);
+            String requestId = chunk.getRequestId();
+            boolean done = chunk.isDone();
+            String chunkBase64 = chunk.getChunkBase64();
+            String error = chunk.getError();
 
             PendingRequest pending = done ? 
-                requestManager.removePendingRequest(requestId) : 
-                requestManager.getPendingRequest(requestId);
+                requestManager.removePendingRequest(requestId, ctx.channel()) : 
+                requestManager.getPendingRequest(requestId, ctx.channel());
                 
             if (pending != null) {
                 if (error != null) {
-                    HttpHandler.sendStreamingError(pending.getCtx(), error);
-                } else if (chunkBase64 != null) {
-                    HttpHandler.sendStreamingChunk(pending.getCtx(), chunkBase64);
+                    // An error ends the response whether or not "done" was set
+                    requestManager.removePendingRequest(requestId, ctx.channel());
+                    StreamFlowControl.finish(pending);
+                    if (pending.getSink() != null) {
+                        pending.getSink().fail(HttpResponseStatus.INTERNAL_SERVER_ERROR, error);
+                    } else {
+                        HttpHandler.sendStreamingError(pending.getCtx(), pending.getRequest(),
+                            pending.isResponseStarted(), error);
+                    }
+                    return;
+                }
+                if (chunkBase64 != null) {
+                    sendChunk(pending, HttpHandler.decodeBase64(ctx.alloc(), chunkBase64));
                 }
                 
                 if (done) {
-                    HttpHandler.endStreamingResponse(pending.getCtx());
+                    endStream(pending);
                 }
             } else {
                 Log.w(TAG, "No pending request for streaming chunk: " + requestId);
@@ -290,8 +397,9 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
                 payload.get("mimeType").getAsString() : "application/octet-stream";
             String ownerId = payload.has("ownerId") ? 
                 payload.get("ownerId").getAsString() : "unknown";
+            String hash = getStringFromPayload(payload, "hash", null);
 
-            serviceManager.registerFile(fileId, filename, size, mimeType, ownerId, ctx.channel());
+            serviceManager.registerFile(fileId, filename, size, mimeType, ownerId, ctx.channel(), hash);
         } catch (Exception e) {
             Log.e(TAG, "Failed to register file", e);
         }
@@ -425,6 +533,31 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
         }
     }
     
+    /**
+     * Drop cached responses of the sending service: the listed service-relative
+     * paths, or everything if none are given.
+     */
+    private void handleCachePurge(ChannelHandlerContext ctx, Message message) {
+        String serviceName = message.getService();
+        if (!serviceManager.isProvider(serviceName, ctx.channel())) {
+            Log.w(TAG, "Cache purge from a channel that does not own service: " + serviceName);
+            return;
+        }
+        ResponseCache cache = requestManager.getResponseCache();
+        if (cache == null) {
+            return;
+        }
+        List<String> paths = null;
+        JsonObject payload = message.getPayload();
+        if (payload != null && payload.has("paths")) {
+            paths = new ArrayList<>();
+            for (JsonElement path : payload.getAsJsonArray("paths")) {
+                paths.add(path.getAsString());
+            }
+        }
+        cache.purge(serviceName, paths);
+    }
+
     /**
      * Handle kick client request from service.
      */
@@ -551,16 +684,10 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
         try {
             String serviceName = message.getService();
             
-            List<ServiceManager.ServiceInstance> instances = serviceManager.getInstancesForService(serviceName);
-            
             Message response = new Message(Message.TYPE_INSTANCE_LIST);
             response.setService(serviceName);
             JsonObject payload = new JsonObject();
-            JsonArray arr = new JsonArray();
-            for (ServiceManager.ServiceInstance inst : instances) {
-                arr.add(inst.toJson());
-            }
-            payload.add("instances", arr);
+            payload.add("instances", serviceManager.getInstanceList(serviceName));
             response.setPayload(payload);
             
             ctx.writeAndFlush(new TextWebSocketFrame(response.toJson()));
@@ -649,14 +776,14 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
             String service = message.getService();
             if (service == null) return;
             
-            String json = message.toJson();
-            
             // Send to all clients of this service type
+            List<Channel> recipients = new ArrayList<>();
             for (ServiceManager.ClientInfo client : serviceManager.getClientsByType(service)) {
-                if (client.getChannel() != null && client.getChannel().isActive() && client.getChannel() != ctx.channel()) {
-                    client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
+                if (client.getChannel() != ctx.channel()) {
+                    recipients.add(client.getChannel());
                 }
             }
+            Broadcaster.broadcast(forwardedContent(ctx, message), recipients);
         } catch (Exception e) {
             Log.e(TAG, "Failed to broadcast message", e);
         }
@@ -711,44 +838,76 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
             String instanceUuid = sender.getInstanceUuid();
             String senderUserId = sender.getUserId();
             
-            // Broadcast to all other users in the same instance
-            String json = message.toJson();
-            List<ServiceManager.ClientInfo> instanceClients;
+            // Files announced with a content hash can be downloaded from several owners at once.
+            // The payload is read as a copy, so the message is still forwarded as received.
+            if (Message.TYPE_FILE_ADD.equals(message.getType())) {
+                indexFileSource(ctx, message.readPayload(JsonObject.class), instanceUuid, senderUserId);
+            } else if (Message.TYPE_FILE_REMOVE.equals(message.getType())) {
+                String fileId = getStringFromPayload(message.readPayload(JsonObject.class), "id", null);
+                // Only the owner may withdraw a file (global ids are "userId/localId")
+                if (fileId != null && senderUserId != null && fileId.startsWith(senderUserId + "/")) {
+                    serviceManager.revokeFile(fileId);
+                }
+            }
             
             if (instanceUuid != null) {
-                instanceClients = serviceManager.getClientsInInstance(instanceUuid);
-            } else {
-                // Fallback to service-based broadcasting for legacy clients
-                instanceClients = serviceManager.getClientsByType(sender.getClientType());
+                // Broadcast to all other users in the same instance, and its owner, on the instance's loop
+                serviceManager.broadcastToInstance(instanceUuid, forwardedContent(ctx, message), ctx.channel());
+                Log.d(TAG, "Broadcast instance message: " + message.getType() + " in " + instanceUuid);
+                return;
             }
             
-            for (ServiceManager.ClientInfo client : instanceClients) {
+            // Fallback to service-based broadcasting for legacy clients
+            List<Channel> recipients = new ArrayList<>();
+            for (ServiceManager.ClientInfo client : serviceManager.getClientsByType(sender.getClientType())) {
                 // Don't send back to sender
-                if (client.getUserId().equals(senderUserId)) {
-                    continue;
-                }
-                
-                if (client.getChannel() != null && client.getChannel().isActive()) {
-                    client.getChannel().writeAndFlush(new TextWebSocketFrame(json));
+                if (!client.getUserId().equals(senderUserId)) {
+                    recipients.add(client.getChannel());
                 }
             }
+            Broadcaster.broadcast(forwardedContent(ctx, message), recipients);
             
-            // Also send to the instance owner if any
-            if (instanceUuid != null) {
-                ServiceManager.ServiceInstance instance = serviceManager.getInstance(instanceUuid);
-                if (instance != null && instance.getOwnerChannel() != null && 
-                    instance.getOwnerChannel().isActive() && 
-                    instance.getOwnerChannel() != ctx.channel()) {
-                    instance.getOwnerChannel().writeAndFlush(new TextWebSocketFrame(json));
-                }
-            }
-            
-            Log.d(TAG, "Broadcast instance message: " + message.getType() + " to " + instanceClients.size() + " clients");
+            Log.d(TAG, "Broadcast instance message: " + message.getType() + " to " + recipients.size() + " clients");
         } catch (Exception e) {
             Log.e(TAG, "Failed to handle instance message", e);
         }
     }
 
+    /**
+     * A relayed message as frame content for Broadcaster, retained once: the received
+     * frame when the message is unchanged, otherwise a single encoding of it.
+     */
+    private static ByteBuf forwardedContent(ChannelHandlerContext ctx, Message message) {
+        ByteBuf source = message.getSource();
+        if (source != null) {
+            return source.retain();
+        }
+        return ByteBufUtil.writeUtf8(ctx.alloc(), message.toJson());
+    }
+
+    private void indexFileSource(ChannelHandlerContext ctx, JsonObject payload, String instanceUuid,
+                                 String senderUserId) {
+        String fileId = getStringFromPayload(payload, "id", null);
+        String hash = getStringFromPayload(payload, "hash", null);
+        if (fileId == null || hash == null || !payload.has("size")) {
+            return;
+        }
+        // Global ids are "userId/localId"; a user may only announce their own files
+        if (senderUserId == null || !fileId.startsWith(senderUserId + "/")) {
+            Log.w(TAG, "Not indexing " + fileId + " announced by " + senderUserId);
+            return;
+        }
+        serviceManager.addFileSource(instanceUuid, new ServiceManager.FileInfo(
+            fileId,
+            getStringFromPayload(payload, "filename", fileId),
+            payload.get("size").getAsLong(),
+            getStringFromPayload(payload, "mimeType", "application/octet-stream"),
+            senderUserId,
+            ctx.channel(),
+            hash
+        ));
+    }
+
     /**
      * Safely get a string from JsonObject, handling null and JsonNull.
      */
@@ -30,6 +30,8 @@ public class ConfigFragment extends Fragment {
     private TextInputEditText portInput;
     private TextInputEditText corsOriginsInput;
     private CheckBox httpsCheckbox;
+    private CheckBox relayCacheCheckbox;
+    private TextInputEditText relayCacheSizeInput;
     private TextView certInfo;
     private Button saveButton;
     private CheckBox debugLogsCheckbox;
@@ -52,6 +54,8 @@ public class ConfigFragment extends Fragment {
         portInput = view.findViewById(R.id.portInput);
         corsOriginsInput = view.findViewById(R.id.corsOriginsInput);
         httpsCheckbox = view.findViewById(R.id.httpsCheckbox);
+        relayCacheCheckbox = view.findViewById(R.id.relayCacheCheckbox);
+        relayCacheSizeInput = view.findViewById(R.id.relayCacheSizeInput);
         certInfo = view.findViewById(R.id.certInfo);
         saveButton = view.findViewById(R.id.saveButton);
         debugLogsCheckbox = view.findViewById(R.id.debugLogsCheckbox);
@@ -83,6 +87,8 @@ public class ConfigFragment extends Fragment {
         httpsCheckbox.setChecked(config.isHttpsEnabled());
         certInfo.setVisibility(config.isHttpsEnabled() ? View.VISIBLE : View.GONE);
         corsOriginsInput.setText(config.getCorsOrigins());
+        relayCacheCheckbox.setChecked(config.isRelayCacheEnabled());
+        relayCacheSizeInput.setText(String.valueOf(config.getRelayCacheSizeMb()));
         debugLogsCheckbox.setChecked(config.isDebugLogsEnabled());
         updateDebugLogsUrl();
     }
@@ -112,6 +118,19 @@ public class ConfigFragment extends Fragment {
             return;
         }
 
+        // Validate relay cache size
+        int cacheSizeMb;
+        try {
+            cacheSizeMb = Integer.parseInt(relayCacheSizeInput.getText().toString().trim());
+            if (cacheSizeMb < 1) {
+                Toast.makeText(getContext(), "Cache size must be at least 1 MB", Toast.LENGTH_SHORT).show();
+                return;
+            }
+        } catch (NumberFormatException e) {
+            Toast.makeText(getContext(), "Invalid cache size", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         // Check if server is running
         if (service != null && service.isServerRunning()) {
             Toast.makeText(getContext(), "Stop server before changing configuration", Toast.LENGTH_SHORT).show();
@@ -128,6 +147,8 @@ public class ConfigFragment extends Fragment {
         config.setPort(port);
         config.setHttpsEnabled(httpsCheckbox.isChecked());
         config.setCorsOrigins(corsOrigins);
+        config.setRelayCacheEnabled(relayCacheCheckbox.isChecked());
+        config.setRelayCacheSizeMb(cacheSizeMb);
 
         Toast.makeText(getContext(), "Configuration saved", Toast.LENGTH_SHORT).show();
     }
@@ -140,6 +161,8 @@ public class ConfigFragment extends Fragment {
             portInput.setEnabled(canEdit);
             httpsCheckbox.setEnabled(canEdit);
             corsOriginsInput.setEnabled(canEdit);
+            relayCacheCheckbox.setEnabled(canEdit);
+            relayCacheSizeInput.setEnabled(canEdit);
             saveButton.setEnabled(canEdit);
             
             updateDebugLogsUrl();